@@ -0,0 +1,184 @@
+package net.fybertech.curselib;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+/**
+ * CurseHttpClient on top of HttpURLConnection.
+ *
+ * The JDK keeps idle connections alive and reuses them for the same host as
+ * long as each response is read to the end and closed, which Response.close
+ * takes care of.  On top of that the client limits how many requests can be
+ * open at once, so a burst of downloads waits for a free connection rather
+ * than opening sockets without bound, and applies connect and read timeouts
+ * so a stalled server can't hang a download forever.
+ */
+public class CurseDefaultHttpClient implements CurseHttpClient
+{
+	/** Default limit on requests open at once */
+	public static final int DEFAULT_MAX_CONNECTIONS = 8;
+
+	/** Default connect timeout, in milliseconds */
+	public static final int DEFAULT_CONNECT_TIMEOUT = 15000;
+
+	/** Default read timeout, in milliseconds */
+	public static final int DEFAULT_READ_TIMEOUT = 30000;
+
+	/** Largest remainder of a body read on close to keep its connection alive */
+	private static final int DRAIN_LIMIT = 64 * 1024;
+
+	private final Semaphore connections;
+	private int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+	private int readTimeout = DEFAULT_READ_TIMEOUT;
+
+
+
+	public CurseDefaultHttpClient()
+	{
+		this(DEFAULT_MAX_CONNECTIONS);
+	}
+
+
+	/**
+	 * Creates a client allowing up to the specified number of requests to be
+	 * open at once.
+	 */
+	public CurseDefaultHttpClient(int maxConnections)
+	{
+		connections = new Semaphore(maxConnections, true);
+	}
+
+
+	/**
+	 * Sets the connect timeout in milliseconds, 0 meaning none.
+	 */
+	public CurseDefaultHttpClient setConnectTimeout(int connectTimeout)
+	{
+		this.connectTimeout = connectTimeout;
+		return this;
+	}
+
+
+	/**
+	 * Sets the timeout for each read in milliseconds, 0 meaning none.
+	 */
+	public CurseDefaultHttpClient setReadTimeout(int readTimeout)
+	{
+		this.readTimeout = readTimeout;
+		return this;
+	}
+
+
+	@Override
+	public Response get(String url, Map<String, String> headers) throws IOException
+	{
+		try {
+			connections.acquire();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for a connection");
+		}
+
+		try {
+			HttpURLConnection connection = (HttpURLConnection)new URL(url).openConnection();
+			connection.setConnectTimeout(connectTimeout);
+			connection.setReadTimeout(readTimeout);
+			connection.setRequestProperty("User-Agent", CurseLib.USER_AGENT);
+			if (headers != null) {
+				for (Map.Entry<String, String> header : headers.entrySet()) connection.setRequestProperty(header.getKey(), header.getValue());
+			}
+
+			// Sends the request, so connection errors surface here
+			connection.getResponseCode();
+			return new ConnectionResponse(connection);
+		}
+		catch (IOException | RuntimeException e) {
+			connections.release();
+			throw e;
+		}
+	}
+
+
+
+	/**
+	 * Response holding one of the client's connections until closed.
+	 */
+	private class ConnectionResponse implements Response
+	{
+		private final HttpURLConnection connection;
+		private InputStream body = null;
+		private boolean closed = false;
+
+		ConnectionResponse(HttpURLConnection connection)
+		{
+			this.connection = connection;
+		}
+
+		@Override
+		public int getStatusCode() throws IOException
+		{
+			return connection.getResponseCode();
+		}
+
+		@Override
+		public String getHeader(String name)
+		{
+			return connection.getHeaderField(name);
+		}
+
+		@Override
+		public String getUrl()
+		{
+			return connection.getURL().toString();
+		}
+
+		@Override
+		public long getContentLength()
+		{
+			return connection.getContentLengthLong();
+		}
+
+		@Override
+		public synchronized InputStream getBody() throws IOException
+		{
+			if (body != null) return body;
+
+			InputStream stream = connection.getResponseCode() >= 400 ? connection.getErrorStream() : connection.getInputStream();
+			if (stream == null) stream = new ByteArrayInputStream(new byte[0]);
+			body = new BufferedInputStream(stream, CurseLib.STREAM_BUFFER_SIZE);
+			return body;
+		}
+
+		@Override
+		public synchronized void close() throws IOException
+		{
+			if (closed) return;
+			closed = true;
+
+			try {
+				InputStream stream = getBody();
+
+				// A short unread remainder is cheaper to skip than a new connection
+				long drained = 0;
+				while (drained < DRAIN_LIMIT && stream.read() != -1) drained++;
+				if (drained >= DRAIN_LIMIT) connection.disconnect();
+
+				stream.close();
+			}
+			catch (IOException e) {
+				connection.disconnect();
+			}
+			finally {
+				connections.release();
+			}
+		}
+	}
+}
@@ -0,0 +1,401 @@
+package net.fybertech.curselib;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Downloads files so that only complete files ever appear under their
+ * final name.
+ *
+ * The body is written to a ".part" file named after the request URL, which
+ * is renamed once all of it has arrived.  If a download fails partway, it's
+ * retried with an HTTP Range request for the remainder, and a part file left
+ * behind by an earlier run is resumed the same way.  Resuming assumes the
+ * file at a URL doesn't change, which holds for Curse's file IDs.
+ *
+ * Large files on servers that accept ranges are split into several ranges
+ * fetched at once.  Those are written into a separate ".ranges" file, since
+ * it has holes until every range is done, and only that download's own
+ * retries resume it.
+ */
+public class CurseFileDownloader
+{
+	/** Default size from which files are downloaded in parallel ranges */
+	public static final long DEFAULT_PARALLEL_THRESHOLD = 16 * 1024 * 1024;
+
+	/** Default number of ranges large files are split into */
+	public static final int DEFAULT_RANGES = 4;
+
+	/** Default number of attempts made for a file, or for each range */
+	public static final int DEFAULT_ATTEMPTS = 3;
+
+	private final CurseHttpClient client;
+	private long parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
+	private int ranges = DEFAULT_RANGES;
+	private int attempts = DEFAULT_ATTEMPTS;
+
+
+
+	/**
+	 * Creates a downloader using CurseLib's current HTTP client.
+	 */
+	public CurseFileDownloader()
+	{
+		this(CurseLib.getHttpClient());
+	}
+
+
+	public CurseFileDownloader(CurseHttpClient client)
+	{
+		this.client = client;
+	}
+
+
+	/**
+	 * Sets the size from which files are split into parallel ranges.
+	 */
+	public CurseFileDownloader setParallelThreshold(long parallelThreshold)
+	{
+		this.parallelThreshold = parallelThreshold;
+		return this;
+	}
+
+
+	/**
+	 * Sets how many ranges large files are split into, 1 disabling parallel
+	 * downloads.
+	 */
+	public CurseFileDownloader setRanges(int ranges)
+	{
+		this.ranges = ranges;
+		return this;
+	}
+
+
+	public CurseFileDownloader setAttempts(int attempts)
+	{
+		this.attempts = attempts;
+		return this;
+	}
+
+
+	/**
+	 * Returns the part file a URL is downloaded to in a directory.
+	 */
+	public static File getPartFile(String url, File directory)
+	{
+		return new File(directory, String.format("%08x", url.hashCode()) + ".part");
+	}
+
+
+	/**
+	 * Downloads a URL into a directory.  The file is named after the last
+	 * part of the URL, or of the URL it redirects to if discoverFilename is
+	 * true.
+	 *
+	 * @throws FileNotFoundException If the server has no such file, which
+	 * isn't retried.
+	 */
+	public File download(String url, File directory, boolean discoverFilename) throws IOException
+	{
+		if (!directory.exists()) directory.mkdirs();
+
+		File partFile = getPartFile(url, directory);
+		String[] validator = new String[1];
+		boolean parallel = ranges > 1;
+
+		IOException failure = null;
+		for (int attempt = 0; attempt < attempts; attempt++) {
+			try {
+				String finalUrl = fetch(url, partFile, validator, parallel);
+
+				String name = discoverFilename ? finalUrl : url;
+				name = name.substring(name.lastIndexOf('/') + 1);
+				int query = name.indexOf('?');
+				if (query >= 0) name = name.substring(0, query);
+
+				File outfile = new File(directory, name);
+				CurseLib.replaceFile(partFile, outfile);
+				return outfile;
+			}
+			catch (FileNotFoundException e) {
+				partFile.delete();
+				throw e;
+			}
+			catch (ParallelDownloadException e) {
+				failure = e;
+				parallel = false;
+			}
+			catch (IOException e) {
+				failure = e;
+			}
+		}
+
+		throw failure;
+	}
+
+
+	/**
+	 * Makes one attempt at completing the part file, resuming it if it has
+	 * data already.
+	 *
+	 * @return The URL that finally answered the request.
+	 */
+	private String fetch(String url, File partFile, String[] validator, boolean parallel) throws IOException
+	{
+		long offset = partFile.exists() ? partFile.length() : 0;
+
+		Map<String, String> headers = new HashMap<>();
+		if (offset > 0) {
+			headers.put("Range", "bytes=" + offset + "-");
+			if (validator[0] != null) headers.put("If-Range", validator[0]);
+		}
+
+		CurseHttpClient.Response response = client.get(url, headers);
+		try {
+			int code = response.getStatusCode();
+
+			if (code == 416 && offset > 0) {
+				partFile.delete();
+				throw new IOException("Range not satisfiable for " + url + ", restarting");
+			}
+			if (code == 404 || code == 410) throw new FileNotFoundException("HTTP " + code + " for " + url);
+
+			long length = response.getContentLength();
+			if (code == 206) {
+				long[] range = parseContentRange(response.getHeader("Content-Range"));
+				if (range == null || range[0] != offset) {
+					partFile.delete();
+					throw new IOException("Unexpected Content-Range for " + url + ", restarting");
+				}
+				length = range[2] >= 0 ? range[2] : (length >= 0 ? offset + length : -1);
+			}
+			else if (code == 200) {
+				offset = 0;
+			}
+			else {
+				throw new IOException("HTTP " + code + " for " + url);
+			}
+
+			String etag = response.getHeader("ETag");
+			validator[0] = etag != null && !etag.startsWith("W/") ? etag : response.getHeader("Last-Modified");
+
+			if (parallel && offset == 0 && length >= parallelThreshold && "bytes".equalsIgnoreCase(response.getHeader("Accept-Ranges"))) {
+				// Give back this connection before the ranges wait for theirs
+				String finalUrl = response.getUrl();
+				CurseLib.closeQuietly(response);
+				response = null;
+
+				fetchRanges(finalUrl, partFile, length, validator[0]);
+				return finalUrl;
+			}
+
+			FileChannel channel = FileChannel.open(partFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			try {
+				channel.truncate(offset);
+				channel.position(offset);
+				CurseLib.writeStreamToChannel(response.getBody(), channel);
+
+				if (length >= 0 && channel.size() != length) {
+					throw new IOException("Incomplete download of " + url + ": " + channel.size() + " of " + length + " bytes");
+				}
+			}
+			finally {
+				channel.close();
+			}
+
+			return response.getUrl();
+		}
+		finally {
+			CurseLib.closeQuietly(response);
+		}
+	}
+
+
+	/**
+	 * Downloads the file from the URL in parallel ranges, the first on this
+	 * thread and the rest on a pool.  The result is moved to the part file
+	 * once complete.
+	 *
+	 * No thread holds a response while waiting for another range, so any
+	 * number of downloads can share a client with a connection limit.
+	 */
+	private void fetchRanges(final String url, File partFile, long length, String validator) throws IOException
+	{
+		final File rangesFile = new File(partFile.getPath() + ".ranges");
+		final String ifRange = validator;
+		final long rangeSize = (length + ranges - 1) / ranges;
+
+		ExecutorService pool = Executors.newFixedThreadPool(ranges - 1, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "CurseFileDownloader range");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		final FileChannel channel = FileChannel.open(rangesFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		boolean complete = false;
+		try {
+			List<Future<Void>> results = new ArrayList<>();
+			for (int n = 1; n < ranges; n++) {
+				final long start = n * rangeSize;
+				final long end = Math.min(length, start + rangeSize);
+				if (start >= end) break;
+
+				results.add(pool.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws IOException {
+						fetchRange(url, ifRange, channel, start, end);
+						return null;
+					}
+				}));
+			}
+
+			fetchRange(url, ifRange, channel, 0, Math.min(length, rangeSize));
+
+			for (Future<Void> result : results) {
+				try {
+					result.get();
+				}
+				catch (ExecutionException e) {
+					throw new ParallelDownloadException("Range download failed for " + url, e.getCause());
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new ParallelDownloadException("Range download interrupted for " + url, e);
+				}
+			}
+
+			channel.force(false);
+			complete = true;
+		}
+		catch (ParallelDownloadException e) {
+			throw e;
+		}
+		catch (IOException e) {
+			throw new ParallelDownloadException("Range download failed for " + url, e);
+		}
+		finally {
+			pool.shutdownNow();
+			channel.close();
+			if (!complete) rangesFile.delete();
+		}
+
+		CurseLib.replaceFile(rangesFile, partFile);
+	}
+
+
+	/**
+	 * Fills the bytes from start to end of the channel, requesting the
+	 * remainder of the range after each failure.
+	 */
+	private void fetchRange(String url, String ifRange, FileChannel channel, long start, long end) throws IOException
+	{
+		long position = start;
+		IOException failure = null;
+
+		for (int attempt = 0; attempt < attempts && position < end; attempt++) {
+			CurseHttpClient.Response response = null;
+			try {
+				Map<String, String> headers = new HashMap<>();
+				headers.put("Range", "bytes=" + position + "-" + (end - 1));
+				if (ifRange != null) headers.put("If-Range", ifRange);
+
+				response = client.get(url, headers);
+				long[] range = response.getStatusCode() == 206 ? parseContentRange(response.getHeader("Content-Range")) : null;
+				if (range == null || range[0] != position) throw new ParallelDownloadException("Server ignored range request for " + url, null);
+
+				position = copyRange(response.getBody(), channel, position, end);
+				if (position < end) failure = new IOException("Range ended early for " + url);
+			}
+			catch (ParallelDownloadException e) {
+				throw e;
+			}
+			catch (IOException e) {
+				failure = e;
+			}
+			finally {
+				CurseLib.closeQuietly(response);
+			}
+		}
+
+		if (position < end) throw failure;
+	}
+
+
+	/**
+	 * Copies a stream into the channel from position up to end, returning
+	 * the position reached.
+	 */
+	private static long copyRange(InputStream in, FileChannel channel, long position, long end) throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(CurseLib.STREAM_BUFFER_SIZE);
+		byte[] array = buffer.array();
+
+		while (position < end) {
+			int count = in.read(array, 0, (int)Math.min(array.length, end - position));
+			if (count == -1) break;
+
+			buffer.limit(count);
+			while (buffer.hasRemaining()) position += channel.write(buffer, position);
+			buffer.clear();
+		}
+
+		return position;
+	}
+
+
+	/**
+	 * Parses a "bytes start-end/total" header into its three values, total
+	 * being -1 if unknown, or returns null if it can't be parsed.
+	 */
+	private static long[] parseContentRange(String header)
+	{
+		if (header == null || !header.startsWith("bytes ")) return null;
+
+		try {
+			int dash = header.indexOf('-');
+			int slash = header.indexOf('/');
+			long start = Long.parseLong(header.substring(6, dash).trim());
+			long end = Long.parseLong(header.substring(dash + 1, slash).trim());
+			String total = header.substring(slash + 1).trim();
+			return new long[] { start, end, total.equals("*") ? -1 : Long.parseLong(total) };
+		}
+		catch (RuntimeException e) {
+			return null;
+		}
+	}
+
+
+
+	/**
+	 * Thrown when a parallel download fails, so it's retried as a single
+	 * stream.
+	 */
+	private static class ParallelDownloadException extends IOException
+	{
+		private static final long serialVersionUID = 1L;
+
+		ParallelDownloadException(String message, Throwable cause)
+		{
+			super(message, cause);
+		}
+	}
+}
@@ -0,0 +1,56 @@
+package net.fybertech.curselib;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+/**
+ * Makes the HTTP requests behind CurseLib's downloads.
+ *
+ * CurseLib uses a CurseDefaultHttpClient unless another client is set with
+ * CurseLib.setHttpClient, such as one that answers requests in-process for
+ * testing.
+ */
+public interface CurseHttpClient
+{
+	/**
+	 * Response to a request.  It must be closed once read, which returns its
+	 * connection to the client.
+	 */
+	public static interface Response extends Closeable
+	{
+		/**
+		 * Returns the HTTP status code.
+		 */
+		public int getStatusCode() throws IOException;
+
+		/**
+		 * Returns the value of a response header, or null if it wasn't sent.
+		 */
+		public String getHeader(String name);
+
+		/**
+		 * Returns the URL that finally answered the request, after any
+		 * redirects.
+		 */
+		public String getUrl();
+
+		/**
+		 * Returns the length of the body, or -1 if unknown.
+		 */
+		public long getContentLength();
+
+		/**
+		 * Returns the body, which for error responses may be empty.
+		 */
+		public InputStream getBody() throws IOException;
+	}
+
+
+	/**
+	 * Sends a GET request with the specified extra headers, which may be
+	 * null.  The response is returned whatever its status code.
+	 */
+	public Response get(String url, Map<String, String> headers) throws IOException;
+}
@@ -1,14 +1,39 @@
 package net.fybertech.curselib;
 
-import java.io.ByteArrayInputStream;
+import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.reflect.Method;
 import java.net.HttpURLConnection;
-import java.net.URL;
-import java.net.URLConnection;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
 
@@ -21,6 +46,9 @@ public class CurseLib
 	/** Server used for HTTP requests */
 	public static final String CURSE_HOST = "clientupdate-v6.cursecdn.com";
 	
+	/** Base URL of the database feeds */
+	public static final String FEED_URL = "http://" + CURSE_HOST + "/feed/addons/432/v10/";
+	
 	/** Local directory for cached files */
 	public static final String CACHE_LOCATION = "cache";
 	
@@ -30,6 +58,24 @@ public class CurseLib
 	/** Local directory for mod/modpack/etc archives */
 	public static final String FILECACHE_LOCATION = CACHE_LOCATION + File.separator + "files";
 	
+	/** Local directory for HTTP validators and cached response bodies */
+	public static final String HTTPCACHE_LOCATION = CACHE_LOCATION + File.separator + "http";
+	
+	/** Buffer size used when streaming downloads to disk */
+	public static final int STREAM_BUFFER_SIZE = 64 * 1024;
+	
+	/** Default overall timeout for database version queries, in milliseconds */
+	public static final int VERSION_QUERY_TIMEOUT = 10000;
+	
+	/** Client used for all HTTP requests */
+	private static volatile CurseHttpClient httpClient = new CurseDefaultHttpClient();
+	
+	/** Executor the asynchronous methods run on, created on first use */
+	private static volatile Executor asyncExecutor = null;
+	
+	/** Validators used for conditional requests, created on first use */
+	private static volatile CurseValidatorStore validatorStore = null;
+	
 	
 	
 	/**  
@@ -64,7 +110,14 @@ public class CurseLib
 		 * Returns a File object to the local database file.
 		 */
 		public File getFile() {
-			return new File(DATABASE_LOCATION, getFilename());
+			return getFile(new File(DATABASE_LOCATION));
+		}
+
+		/**
+		 * Returns a File object to the database file in the specified directory.
+		 */
+		public File getFile(File databaseDir) {
+			return new File(databaseDir, getFilename());
 		}
 
 		/**
@@ -72,18 +125,92 @@ public class CurseLib
 		 * version of this database.
 		 */
 		public String getQueryUrl() {
-			return "http://" + CurseLib.CURSE_HOST + "/feed/addons/432/v10/" + this.getUrlSlug() + ".json.bz2.txt";
+			return getQueryUrl(FEED_URL);
+		}
+
+		/**
+		 * Returns the URL needed to request the timestamp of the latest 
+		 * version of this database from the feeds at the specified base URL.
+		 */
+		public String getQueryUrl(String feedUrl) {
+			return feedUrl + this.getUrlSlug() + ".json.bz2.txt";
 		}
 
 		/**
 		 * Returns the URL needed to request the database for the specified version.
 		 */
 		public String getDownloadUrl(long version) {
-			return "http://" + CurseLib.CURSE_HOST + "/feed/addons/432/v10/" + this.getUrlSlug() + ".json.bz2?t=" + version;
+			return getDownloadUrl(FEED_URL, version);
+		}
+
+		/**
+		 * Returns the URL needed to request the database for the specified 
+		 * version from the feeds at the specified base URL.
+		 */
+		public String getDownloadUrl(String feedUrl, long version) {
+			return feedUrl + this.getUrlSlug() + ".json.bz2?t=" + version;
 		}
 	}
 	
 	
+	/**
+	 * Result of querying the latest version of one database type, holding
+	 * either the version or the error that prevented reading it.
+	 */
+	public static class DatabaseVersion
+	{
+		public final EnumDatabaseType type;
+		public final long version;
+		public final Exception error;
+		
+		public DatabaseVersion(EnumDatabaseType type, long version, Exception error)
+		{
+			this.type = type;
+			this.version = version;
+			this.error = error;
+		}
+		
+		/**
+		 * Returns true if the version was read successfully.
+		 */
+		public boolean isAvailable() {
+			return error == null && version != 0;
+		}
+		
+		@Override
+		public String toString() {
+			return error != null ? error.toString() : Long.toString(version);
+		}
+	}
+	
+	
+	
+	/**
+	 * Result of a conditional download.  The body is in the file either way;
+	 * cacheHit tells whether it was already there and the server only 
+	 * confirmed it was still current.
+	 */
+	public static class CachedResponse
+	{
+		public final File file;
+		public final boolean cacheHit;
+		
+		public CachedResponse(File file, boolean cacheHit)
+		{
+			this.file = file;
+			this.cacheHit = cacheHit;
+		}
+		
+		/**
+		 * Reads the body from the file.
+		 */
+		public byte[] getData() throws IOException {
+			return Files.readAllBytes(file.toPath());
+		}
+	}
+	
+	
+	
 	/**
 	 * Downloads a file as the specified destination filename.
 	 */
@@ -99,38 +226,15 @@ public class CurseLib
 	 * If discoverFilename is true, the filename will automatically be determined
 	 * after the HTTP request is made, and downloaded to the provided destination.
 	 * 
-	 * If discoverFilename false, the destination path must include the output 
-	 * filename.
+	 * If discoverFilename false, the file is named after the last part of the
+	 * requested URL.
+	 * 
+	 * The file only appears under its name once complete; see 
+	 * CurseFileDownloader for how interrupted downloads are resumed.
 	 */
 	public static File downloadFile(String urlstring, File destination, boolean discoverFilename)  throws IOException
 	{
-		String filename = urlstring.substring(urlstring.lastIndexOf("/"));
-		
-		URL url = new URL(urlstring);
-		
-		URLConnection connection = url.openConnection();
-		connection.setRequestProperty("User-Agent", CurseLib.USER_AGENT);
-		InputStream is = connection.getInputStream();
-		
-		if (discoverFilename) {
-			String newURL = connection.getURL().toString();
-			filename = newURL.substring(newURL.lastIndexOf('/') + 1, newURL.length());
-		}
-		
-		File outfile = new File(destination + File.separator + filename);
-		FileOutputStream ostream = new FileOutputStream(outfile);
-		
-		byte[] downloadbuffer = new byte[1024];
-		int count;
-		while((count = is.read(downloadbuffer)) != -1)
-		{
-			ostream.write(downloadbuffer, 0, count);
-		}
-		
-		ostream.close();
-		is.close();
-		
-		return outfile;
+		return new CurseFileDownloader().download(urlstring, destination, discoverFilename);
 	}
 
 
@@ -153,32 +257,166 @@ public class CurseLib
 	 */
 	public static byte[] downloadData(String urlstring)
 	{
-		byte[] output = null;
+		try {
+			return fetchData(urlstring);
+		}
+		catch (Exception e) {
+			return null;
+		}
+	}
+	
+	
+	/**
+	 * Requests a URL and returns the resulting data, throwing if the request
+	 * fails.
+	 */
+	private static byte[] fetchData(String urlstring) throws IOException
+	{
+		CurseHttpClient.Response response = openRequest(urlstring, null);
+		try {
+			return writeStreamToArray(getBody(response, urlstring));
+		}
+		finally {
+			closeQuietly(response);
+		}
+	}
+	
+	
+	
+	/**
+	 * Returns the client used for all of CurseLib's HTTP requests.
+	 */
+	public static CurseHttpClient getHttpClient()
+	{
+		return httpClient;
+	}
+	
+	
+	/**
+	 * Replaces the client used for all of CurseLib's HTTP requests.
+	 */
+	public static void setHttpClient(CurseHttpClient client)
+	{
+		httpClient = client;
+	}
+	
+	
+	/**
+	 * Sends a GET request through the current client.
+	 */
+	private static CurseHttpClient.Response openRequest(String urlstring, Map<String, String> headers) throws IOException
+	{
+		return httpClient.get(urlstring, headers);
+	}
+	
+	
+	/**
+	 * Returns the body of a successful response, or throws if the request 
+	 * failed.
+	 */
+	private static InputStream getBody(CurseHttpClient.Response response, String urlstring) throws IOException
+	{
+		int code = response.getStatusCode();
+		if (code != HttpURLConnection.HTTP_OK) throw new IOException("HTTP " + code + " for " + urlstring);
+		return response.getBody();
+	}
+	
+	
+	
+	/**
+	 * Returns the validator store used for conditional requests, which by 
+	 * default lives in HTTPCACHE_LOCATION.
+	 */
+	public static CurseValidatorStore getValidatorStore()
+	{
+		CurseValidatorStore store = validatorStore;
+		if (store != null) return store;
 		
+		synchronized (CurseLib.class) {
+			if (validatorStore == null) validatorStore = new CurseValidatorStore(new File(HTTPCACHE_LOCATION));
+			return validatorStore;
+		}
+	}
+	
+	
+	/**
+	 * Replaces the validator store used for conditional requests.
+	 */
+	public static void setValidatorStore(CurseValidatorStore store)
+	{
+		validatorStore = store;
+	}
+	
+	
+	/**
+	 * Requests a URL, keeping its body in the validator store.  If a copy
+	 * from an earlier request is there, the request is conditional and a
+	 * 304 response is answered from that copy.
+	 */
+	public static CachedResponse downloadDataCached(String urlstring) throws IOException
+	{
+		return downloadFileCached(urlstring, getValidatorStore().getBodyFile(urlstring));
+	}
+	
+	
+	/**
+	 * Downloads a URL to the destination file.  If the file was downloaded 
+	 * from the same URL before, the request is conditional on its saved ETag
+	 * and Last-Modified, and the file is left as it is when the server 
+	 * responds that it hasn't changed.
+	 */
+	public static CachedResponse downloadFileCached(String urlstring, File destination) throws IOException
+	{
+		return downloadConditional(urlstring, destination);
+	}
+	
+	
+	/**
+	 * Makes a conditional request for a URL, writing a new body to a 
+	 * temporary file that then replaces the destination.
+	 */
+	private static CachedResponse downloadConditional(String urlstring, File destination) throws IOException
+	{
+		CurseValidatorStore store = getValidatorStore();
+		CurseValidatorStore.Validators validators = destination.exists() ? store.get(urlstring) : null;
+		
+		Map<String, String> headers = new HashMap<>();
+		if (validators != null) {
+			if (validators.etag != null) headers.put("If-None-Match", validators.etag);
+			if (validators.lastModified != null) headers.put("If-Modified-Since", validators.lastModified);
+		}
+		
+		CurseHttpClient.Response response = openRequest(urlstring, headers);
+		FileChannel channel = null;
+		File tempFile = null;
 		try {
-			URL url = new URL(urlstring);
-			HttpURLConnection connection = (HttpURLConnection)url.openConnection();
-			connection.setRequestProperty("User-Agent", CurseLib.USER_AGENT);			
-			InputStream is = connection.getInputStream();
+			if (response.getStatusCode() == HttpURLConnection.HTTP_NOT_MODIFIED && validators != null) {
+				store.recordHit();
+				return new CachedResponse(destination, true);
+			}
+			InputStream is = getBody(response, urlstring);
 			
-			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			File destPath = destination.getAbsoluteFile().getParentFile();
+			if (!destPath.exists()) destPath.mkdirs();
+			tempFile = File.createTempFile(destination.getName(), ".tmp", destPath);
 			
-			byte[] downloadbuffer = new byte[1024];
-			int count;
-			while((count = is.read(downloadbuffer)) != -1)
-			{
-				out.write(downloadbuffer, 0, count);
-			}		
+			channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			writeStreamToChannel(is, channel);
+			channel.close();
+			channel = null;
 			
-			out.close();
-			is.close();
+			replaceFile(tempFile, destination);
+			tempFile = null;
 			
-			output = out.toByteArray();
+			store.put(urlstring, response.getHeader("ETag"), response.getHeader("Last-Modified"));
+			store.recordMiss();
+			return new CachedResponse(destination, false);
 		}
-		catch (Exception e) {			
+		finally {
+			closeQuietly(channel);
+			closeQuietly(response);
+			if (tempFile != null) tempFile.delete();
 		}
-		
-		return output;
 	}
 	
 	
@@ -190,7 +428,7 @@ public class CurseLib
 	{	
 		ByteArrayOutputStream ostream = new ByteArrayOutputStream();
 		
-		byte[] downloadbuffer = new byte[1024];
+		byte[] downloadbuffer = new byte[STREAM_BUFFER_SIZE];
 		int count;
 		while((count = istream.read(downloadbuffer)) != -1)
 		{
@@ -208,7 +446,18 @@ public class CurseLib
 	 */
 	public static long getLatestDatabaseVersion(EnumDatabaseType dbType)
 	{
-		String version = downloadString(dbType.getQueryUrl());
+		return getLatestDatabaseVersion(FEED_URL, dbType);
+	}
+	
+	
+	/**
+	 * Queries the feeds at the specified base URL for the timestamp of the
+	 * latest database of the specified type, returning 0 if it can't be 
+	 * read.
+	 */
+	public static long getLatestDatabaseVersion(String feedUrl, EnumDatabaseType dbType)
+	{
+		String version = downloadString(dbType.getQueryUrl(feedUrl));
 		long lversion = 0;		
 		try {
 			lversion = Long.parseLong(version);
@@ -218,41 +467,402 @@ public class CurseLib
 	}	
 	
 	
+	/**
+	 * Queries the latest version of every database type at once, with the 
+	 * default timeout.
+	 */
+	public static Map<EnumDatabaseType, DatabaseVersion> getLatestDatabaseVersions(String feedUrl)
+	{
+		return getLatestDatabaseVersions(feedUrl, VERSION_QUERY_TIMEOUT);
+	}
+	
+	
+	/**
+	 * Queries the feeds at the specified base URL for the latest version of 
+	 * every database type.  The requests are made in parallel, so this takes
+	 * about as long as the slowest one rather than all of them together.
+	 * 
+	 * The timeout applies to the whole batch; a type whose request doesn't 
+	 * finish in time, or fails, is returned with its error instead of a 
+	 * version.
+	 */
+	public static Map<EnumDatabaseType, DatabaseVersion> getLatestDatabaseVersions(final String feedUrl, final int timeoutMillis)
+	{
+		EnumDatabaseType[] types = EnumDatabaseType.values();
+		List<Callable<Long>> queries = new ArrayList<>();
+		for (final EnumDatabaseType type : types) {
+			queries.add(new Callable<Long>() {
+				@Override
+				public Long call() throws Exception {
+					return queryDatabaseVersion(type.getQueryUrl(feedUrl));
+				}
+			});
+		}
+		
+		Map<EnumDatabaseType, DatabaseVersion> versions = new EnumMap<>(EnumDatabaseType.class);
+		ExecutorService pool = Executors.newFixedThreadPool(types.length, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "CurseLib version query");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		
+		try {
+			List<Future<Long>> results = pool.invokeAll(queries, timeoutMillis, TimeUnit.MILLISECONDS);
+			for (int n = 0; n < types.length; n++) {
+				try {
+					versions.put(types[n], new DatabaseVersion(types[n], results.get(n).get(), null));
+				}
+				catch (CancellationException e) {
+					versions.put(types[n], new DatabaseVersion(types[n], 0, new SocketTimeoutException("Version query timed out")));
+				}
+				catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					versions.put(types[n], new DatabaseVersion(types[n], 0, cause instanceof Exception ? (Exception)cause : e));
+				}
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			for (EnumDatabaseType type : types) {
+				if (!versions.containsKey(type)) versions.put(type, new DatabaseVersion(type, 0, e));
+			}
+		}
+		finally {
+			pool.shutdownNow();
+		}
+		
+		return versions;
+	}
+	
+	
+	/**
+	 * Requests a database version from the specified query URL, as a 
+	 * conditional request when it has been read before.
+	 */
+	private static long queryDatabaseVersion(String url) throws IOException
+	{
+		CachedResponse response = downloadConditional(url, getValidatorStore().getBodyFile(url));
+		String version = new String(response.getData(), StandardCharsets.US_ASCII).trim();
+		try {
+			return Long.parseLong(version);
+		}
+		catch (NumberFormatException e) {
+			throw new IOException("Invalid database version: " + version);
+		}
+	}
+	
+	
 	/** 
 	 * Downloads a Curse database of the specified type for the specified timestamp
 	 * into the database cache. 
 	 * 
+	 * The compressed feed is decoded as it arrives and written to a temporary
+	 * file next to the database, which then replaces the old one in a single
+	 * rename, so memory use doesn't depend on the size of the feed and readers
+	 * never see a partially written database.
+	 * 
+	 * The COMPLETE feed is decoded on multiple threads when more than one
+	 * processor is available, falling back to a serial decode if that fails.
+	 * 
 	 * Returns true if successful. 
 	 */
 	public static boolean downloadDatabase(long version, EnumDatabaseType dbType)
 	{
-		if (version == 0) return false;
-		
-		File destination = dbType.getFile();
+		return downloadDatabase(FEED_URL, version, dbType, dbType.getFile());
+	}
+	
+	
+	/**
+	 * Downloads a database of the specified type and timestamp from the feeds
+	 * at the specified base URL to the destination file, in the same way as 
+	 * downloadDatabase(long, EnumDatabaseType).
+	 * 
+	 * Returns true if successful.
+	 */
+	public static boolean downloadDatabase(String feedUrl, long version, EnumDatabaseType dbType, File destination)
+	{
+		try {
+			fetchDatabase(feedUrl, version, dbType, destination);
+			return true;
+		}
+		catch (IOException e) {
+			return false;
+		}
+	}
+	
+	
+	/**
+	 * Downloads a database in the same way as downloadDatabase, but throws 
+	 * the reason it failed instead of returning false.
+	 * 
+	 * While the COMPLETE feed is decoded in parallel, a copy of the 
+	 * compressed data is kept in a temporary file.  If the parallel decode 
+	 * fails, the rest of the feed is added to that copy and it's decoded 
+	 * again serially, so the feed is only downloaded once.
+	 */
+	public static void fetchDatabase(String feedUrl, long version, EnumDatabaseType dbType, File destination) throws IOException
+	{
+		if (version == 0) throw new IOException("No " + dbType + " database version to download");
 		
-		File destPath = destination.getParentFile();
-		if (destPath != null && !destPath.exists()) destPath.mkdirs();
+		File destPath = destination.getAbsoluteFile().getParentFile();
+		if (!destPath.exists()) destPath.mkdirs();
 		
-		byte[] compressedDatabase = downloadData(dbType.getDownloadUrl(version));
+		boolean parallel = dbType == EnumDatabaseType.COMPLETE && Runtime.getRuntime().availableProcessors() > 1;
+		String url = dbType.getDownloadUrl(feedUrl, version);
 		
-		if (compressedDatabase == null) return false;
+		File tempFile = null;
+		File feedFile = null;
+		CurseHttpClient.Response response = null;
+		InputStream is = null;
+		FileChannel channel = null;
+		FileChannel feedChannel = null;
 		
 		try {
-			BZip2CompressorInputStream bz2 = new BZip2CompressorInputStream(new ByteArrayInputStream(compressedDatabase));
-			byte[] db = writeStreamToArray(bz2);
-		
-			FileOutputStream stream = new FileOutputStream(destination);
-			try {
-				stream.write(db);
-			} finally {
-				stream.close();
+			tempFile = File.createTempFile(dbType.getUrlSlug(), ".tmp", destPath);
+			channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			
+			response = openRequest(url, null);
+			is = getBody(response, url);
+			
+			if (parallel) {
+				feedFile = File.createTempFile(dbType.getUrlSlug(), ".bz2.tmp", destPath);
+				feedChannel = FileChannel.open(feedFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+				
+				try {
+					new ParallelBZip2Decoder().decode(new CopyingInputStream(is, feedChannel), Channels.newOutputStream(channel));
+				}
+				catch (IOException e) {
+					// Finish the copy and decode it serially from the start
+					writeStreamToChannel(is, feedChannel);
+					feedChannel.close();
+					feedChannel = null;
+					closeQuietly(is);
+					
+					channel.truncate(0);
+					channel.position(0);
+					is = new BufferedInputStream(Files.newInputStream(feedFile.toPath()), STREAM_BUFFER_SIZE);
+					parallel = false;
+				}
 			}
 			
-			return true;
+			if (!parallel) {
+				// Concatenated streams are decoded too, as the parallel decoder does
+				is = new BZip2CompressorInputStream(is, true);
+				writeStreamToChannel(is, channel);
+			}
+			channel.force(false);
+			channel.close();
+			channel = null;
+			
+			replaceFile(tempFile, destination);
+			tempFile = null;
+		}
+		finally {
+			closeQuietly(is);
+			closeQuietly(channel);
+			closeQuietly(feedChannel);
+			closeQuietly(response);
+			if (tempFile != null) tempFile.delete();
+			if (feedFile != null) feedFile.delete();
+		}
+	}
+	
+	
+	/**
+	 * Writes all possible data from an InputStream to a FileChannel.
+	 */
+	public static long writeStreamToChannel(InputStream istream, FileChannel channel) throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(STREAM_BUFFER_SIZE);
+		byte[] array = buffer.array();
+		long total = 0;
+		
+		int count;
+		while ((count = istream.read(array)) != -1)
+		{
+			buffer.limit(count);
+			while (buffer.hasRemaining()) channel.write(buffer);
+			buffer.clear();
+			total += count;
+		}
+		
+		return total;
+	}
+	
+	
+	/**
+	 * Moves a fully written file over the destination, atomically when the
+	 * file system supports it.
+	 */
+	public static void replaceFile(File source, File destination) throws IOException
+	{
+		try {
+			Files.move(source.toPath(), destination.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (AtomicMoveNotSupportedException e) {
+			Files.move(source.toPath(), destination.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+	
+	
+	/**
+	 * Closes a stream or channel, ignoring any errors.
+	 */
+	public static void closeQuietly(Closeable closeable)
+	{
+		if (closeable == null) return;
+		try {
+			closeable.close();
+		} catch (IOException e) {}
+	}
+	
+	
+	/**
+	 * Returns the executor the asynchronous methods run their blocking work
+	 * on.  By default that's a virtual thread per task where the JVM has 
+	 * them, and otherwise a cached pool of daemon threads.
+	 */
+	public static Executor getAsyncExecutor()
+	{
+		Executor executor = asyncExecutor;
+		if (executor != null) return executor;
+		
+		synchronized (CurseLib.class) {
+			if (asyncExecutor == null) asyncExecutor = createAsyncExecutor();
+			return asyncExecutor;
+		}
+	}
+	
+	
+	/**
+	 * Replaces the executor the asynchronous methods run on.
+	 */
+	public static void setAsyncExecutor(Executor executor)
+	{
+		asyncExecutor = executor;
+	}
+	
+	
+	private static Executor createAsyncExecutor()
+	{
+		// Looked up reflectively so the library still runs on Java 8
+		try {
+			Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (Executor)method.invoke(null);
 		}
 		catch (Exception e) {}
 		
-		return false;
+		return Executors.newCachedThreadPool(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "CurseLib async");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+	
+	
+	/**
+	 * Runs a blocking task on the async executor.  The future completes with
+	 * its result, or exceptionally with whatever it throws.
+	 */
+	public static <T> CompletableFuture<T> supplyAsync(final Callable<T> task)
+	{
+		final CompletableFuture<T> future = new CompletableFuture<>();
+		try {
+			getAsyncExecutor().execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						future.complete(task.call());
+					} catch (Throwable e) {
+						future.completeExceptionally(e);
+					}
+				}
+			});
+		}
+		catch (RejectedExecutionException e) {
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+	
+	
+	/**
+	 * Asynchronous downloadData.  The future completes exceptionally if the
+	 * request fails, rather than with null.
+	 */
+	public static CompletableFuture<byte[]> downloadDataAsync(final String urlstring)
+	{
+		return supplyAsync(new Callable<byte[]>() {
+			@Override
+			public byte[] call() throws IOException {
+				return fetchData(urlstring);
+			}
+		});
+	}
+	
+	
+	/**
+	 * Asynchronous downloadFile.
+	 */
+	public static CompletableFuture<File> downloadFileAsync(final String urlstring, final File destination, final boolean discoverFilename)
+	{
+		return supplyAsync(new Callable<File>() {
+			@Override
+			public File call() throws IOException {
+				return downloadFile(urlstring, destination, discoverFilename);
+			}
+		});
+	}
+	
+	
+	/**
+	 * Asynchronous getLatestDatabaseVersion.  The future completes 
+	 * exceptionally if the version can't be read, rather than with 0.
+	 */
+	public static CompletableFuture<Long> getLatestDatabaseVersionAsync(final EnumDatabaseType dbType)
+	{
+		return supplyAsync(new Callable<Long>() {
+			@Override
+			public Long call() throws IOException {
+				return queryDatabaseVersion(dbType.getQueryUrl(FEED_URL));
+			}
+		});
+	}
+	
+	
+	/**
+	 * Asynchronous getLatestDatabaseVersions.
+	 */
+	public static CompletableFuture<Map<EnumDatabaseType, DatabaseVersion>> getLatestDatabaseVersionsAsync(final String feedUrl)
+	{
+		return supplyAsync(new Callable<Map<EnumDatabaseType, DatabaseVersion>>() {
+			@Override
+			public Map<EnumDatabaseType, DatabaseVersion> call() {
+				return getLatestDatabaseVersions(feedUrl);
+			}
+		});
+	}
+	
+	
+	/**
+	 * Asynchronous downloadDatabase.  The future completes with the database
+	 * file, or exceptionally with the reason the download failed.
+	 */
+	public static CompletableFuture<File> downloadDatabaseAsync(final long version, final EnumDatabaseType dbType)
+	{
+		return supplyAsync(new Callable<File>() {
+			@Override
+			public File call() throws IOException {
+				fetchDatabase(FEED_URL, version, dbType, dbType.getFile());
+				return dbType.getFile();
+			}
+		});
 	}
 	
 	
@@ -266,4 +876,49 @@ public class CurseLib
 	}
 	
 	
+	/**
+	 * Passes a stream through while writing everything read from it to a
+	 * channel.
+	 */
+	private static class CopyingInputStream extends FilterInputStream
+	{
+		private final FileChannel copy;
+		
+		CopyingInputStream(InputStream in, FileChannel copy)
+		{
+			super(in);
+			this.copy = copy;
+		}
+		
+		@Override
+		public int read() throws IOException
+		{
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			int count = in.read(b, off, len);
+			if (count > 0) {
+				ByteBuffer buffer = ByteBuffer.wrap(b, off, count);
+				while (buffer.hasRemaining()) copy.write(buffer);
+			}
+			return count;
+		}
+		
+		@Override
+		public long skip(long n) throws IOException
+		{
+			int count = read(new byte[(int)Math.max(0, Math.min(n, STREAM_BUFFER_SIZE))]);
+			return Math.max(count, 0);
+		}
+		
+		@Override
+		public boolean markSupported()
+		{
+			return false;
+		}
+	}
 }
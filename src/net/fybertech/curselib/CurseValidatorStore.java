@@ -0,0 +1,195 @@
+package net.fybertech.curselib;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+
+/**
+ * Remembers the ETag and Last-Modified validators of downloaded URLs, so
+ * later requests for them can be made conditional and a 304 answered from
+ * the copy already on disk.
+ *
+ * The validators are kept in a properties file in the store's directory,
+ * along with the bodies of responses that aren't saved anywhere else, such
+ * as those read with CurseLib.downloadDataCached.
+ */
+public class CurseValidatorStore
+{
+	/**
+	 * Validators of one URL, either of which may be null.
+	 */
+	public static class Validators
+	{
+		public final String etag;
+		public final String lastModified;
+
+		public Validators(String etag, String lastModified)
+		{
+			this.etag = etag;
+			this.lastModified = lastModified;
+		}
+	}
+
+
+	/** File in the store directory holding the validators */
+	private static final String VALIDATORS_FILENAME = "validators.properties";
+
+	private final File directory;
+	private final Properties validators = new Properties();
+
+	private long hits = 0;
+	private long misses = 0;
+
+
+
+	/**
+	 * Opens the store in the specified directory, loading any validators
+	 * already saved there.
+	 */
+	public CurseValidatorStore(File directory)
+	{
+		this.directory = directory;
+
+		File file = new File(directory, VALIDATORS_FILENAME);
+		if (!file.exists()) return;
+
+		InputStream in = null;
+		try {
+			in = new FileInputStream(file);
+			validators.load(in);
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			CurseLib.closeQuietly(in);
+		}
+	}
+
+
+	public File getDirectory()
+	{
+		return directory;
+	}
+
+
+	/**
+	 * Returns the saved validators of a URL, or null if there are none.
+	 */
+	public synchronized Validators get(String url)
+	{
+		String value = validators.getProperty(url);
+		if (value == null) return null;
+
+		int split = value.indexOf('\n');
+		String etag = value.substring(0, split);
+		String lastModified = value.substring(split + 1);
+		return new Validators(etag.isEmpty() ? null : etag, lastModified.isEmpty() ? null : lastModified);
+	}
+
+
+	/**
+	 * Saves the validators of a URL, or forgets it if both are null.
+	 */
+	public synchronized void put(String url, String etag, String lastModified)
+	{
+		if (etag == null && lastModified == null) {
+			if (validators.remove(url) != null) save();
+			return;
+		}
+
+		validators.setProperty(url, (etag == null ? "" : etag) + "\n" + (lastModified == null ? "" : lastModified));
+		save();
+	}
+
+
+	/**
+	 * Forgets the validators of a URL.
+	 */
+	public synchronized void remove(String url)
+	{
+		if (validators.remove(url) != null) save();
+	}
+
+
+	/**
+	 * Returns the file in the store directory used to keep the body of a URL.
+	 */
+	public File getBodyFile(String url)
+	{
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(url.getBytes(StandardCharsets.UTF_8));
+			StringBuilder name = new StringBuilder(digest.length * 2 + 4);
+			for (byte b : digest) name.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+			return new File(directory, name.append(".dat").toString());
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+
+	/**
+	 * Counts a request answered from the local copy.
+	 */
+	synchronized void recordHit()
+	{
+		hits++;
+	}
+
+
+	/**
+	 * Counts a request that had to download the body.
+	 */
+	synchronized void recordMiss()
+	{
+		misses++;
+	}
+
+
+	/**
+	 * Returns the number of requests answered from local copies.
+	 */
+	public synchronized long getHitCount()
+	{
+		return hits;
+	}
+
+
+	/**
+	 * Returns the number of requests that downloaded the body.
+	 */
+	public synchronized long getMissCount()
+	{
+		return misses;
+	}
+
+
+	private void save()
+	{
+		if (!directory.exists()) directory.mkdirs();
+
+		OutputStream out = null;
+		File tempFile = null;
+		try {
+			tempFile = File.createTempFile("validators", ".tmp", directory);
+			out = new FileOutputStream(tempFile);
+			validators.store(out, "HTTP validators of cached downloads");
+			out.close();
+			out = null;
+
+			CurseLib.replaceFile(tempFile, new File(directory, VALIDATORS_FILENAME));
+			tempFile = null;
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			CurseLib.closeQuietly(out);
+			if (tempFile != null) tempFile.delete();
+		}
+	}
+}
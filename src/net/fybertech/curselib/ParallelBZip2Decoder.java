@@ -0,0 +1,382 @@
+package net.fybertech.curselib;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+
+
+/**
+ * Decodes bzip2 data using several threads at once.
+ *
+ * A bzip2 stream is a series of independently compressed blocks, each
+ * starting with a 48-bit magic number that isn't byte aligned.  The
+ * compressed input is scanned for those boundaries, every block is wrapped
+ * in a stream of its own and decompressed on a ForkJoinPool, and the
+ * results are written out in their original order.
+ *
+ * Each block is checked against its own CRC and the block CRCs against the
+ * stream's combined CRC, so the output is identical to that of a serial
+ * BZip2CompressorInputStream or an IOException is thrown.  Concatenated
+ * streams are decoded as well.
+ */
+public class ParallelBZip2Decoder
+{
+	/** Magic number at the start of each compressed block, the BCD of pi */
+	private static final long BLOCK_MAGIC = 0x314159265359L;
+
+	/** Magic number at the end of each stream, the BCD of sqrt(pi) */
+	private static final long END_MAGIC = 0x177245385090L;
+
+	private static final long MAGIC_MASK = 0xFFFFFFFFFFFFL;
+
+	/** Bits in a stream header: "BZh" and the block size digit */
+	private static final int STREAM_HEADER_BITS = 32;
+
+	/** Bits in a block header that are read: magic, CRC, randomised flag, origPtr */
+	private static final int BLOCK_HEADER_BITS = 48 + 32 + 1 + 24;
+
+	/** Bits in a stream trailer: magic and combined CRC */
+	private static final int STREAM_TRAILER_BITS = 48 + 32;
+
+
+	private final ForkJoinPool pool;
+
+	/** Most decoded blocks held in memory while waiting to be written */
+	private final int maxPendingBlocks;
+
+
+
+	/**
+	 * Creates a decoder running on the common ForkJoinPool.
+	 */
+	public ParallelBZip2Decoder()
+	{
+		this(ForkJoinPool.commonPool());
+	}
+
+
+	/**
+	 * Creates a decoder running on the specified pool.
+	 */
+	public ParallelBZip2Decoder(ForkJoinPool pool)
+	{
+		this.pool = pool;
+		this.maxPendingBlocks = Math.max(2, pool.getParallelism() * 2);
+	}
+
+
+	/**
+	 * Decodes all bzip2 data from the input stream to the output stream.
+	 * Neither stream is closed.
+	 *
+	 * @return The number of decoded bytes written.
+	 */
+	public long decode(InputStream in, OutputStream out) throws IOException
+	{
+		BitInput input = new BitInput(in);
+		Deque<BlockTask> pending = new ArrayDeque<>();
+		long written = 0;
+		long position = 0;
+
+		try {
+			while (true)
+			{
+				// Stream header
+				if (!input.ensure(position + 8)) {
+					if (position == 0) throw new IOException("Stream is not in the BZip2 format");
+					break;
+				}
+				if (!isStreamHeader(input, position)) throw new IOException("Garbage after a valid BZip2 stream");
+
+				int level = (int)input.getBits(position + 24, 8) - '0';
+				position += STREAM_HEADER_BITS;
+
+				// Blocks, split wherever the next block or the stream end begins
+				long blockStart = position;
+				long combinedCRC = 0;
+
+				if (!input.ensure(blockStart + 48)) throw new EOFException("Unexpected end of BZip2 stream");
+				long window = input.getBits(blockStart, 48);
+				long bit = blockStart + 48;
+				boolean hasBlocks = window != END_MAGIC;
+				if (hasBlocks && window != BLOCK_MAGIC) throw new IOException("Bad block header");
+
+				while (hasBlocks)
+				{
+					if (!input.ensure(bit + 1)) throw new EOFException("Unexpected end of BZip2 stream");
+					window = ((window << 1) | input.getBit(bit++)) & MAGIC_MASK;
+
+					long candidate = bit - 48;
+					boolean isBlock = window == BLOCK_MAGIC && isBlockHeader(input, candidate, level);
+					boolean isEnd = !isBlock && window == END_MAGIC && isStreamEnd(input, candidate);
+					if (!isBlock && !isEnd) continue;
+
+					long blockCRC = input.getBits(blockStart + 48, 32);
+					combinedCRC = (((combinedCRC << 1) | (combinedCRC >>> 31)) ^ blockCRC) & 0xFFFFFFFFL;
+
+					BlockTask task = new BlockTask(level, input.copyBits(blockStart, candidate), candidate - blockStart, blockCRC);
+					pending.add(task);
+					pool.execute(task);
+
+					while (pending.size() > maxPendingBlocks) written += writeBlock(pending.poll(), out);
+
+					blockStart = candidate;
+					input.discardBefore(blockStart);
+					if (isEnd) break;
+				}
+
+				// Stream trailer
+				if (!input.ensure(blockStart + STREAM_TRAILER_BITS)) throw new EOFException("Unexpected end of BZip2 stream");
+				long storedCRC = input.getBits(blockStart + 48, 32);
+				if (storedCRC != combinedCRC) throw new IOException("BZip2 CRC error");
+
+				position = (blockStart + STREAM_TRAILER_BITS + 7) & ~7L;
+				input.discardBefore(position);
+			}
+
+			while (!pending.isEmpty()) written += writeBlock(pending.poll(), out);
+		}
+		catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+		finally {
+			for (BlockTask task : pending) task.cancel(false);
+		}
+
+		return written;
+	}
+
+
+	/**
+	 * Waits for a block to finish decoding and writes it out.
+	 */
+	private static int writeBlock(BlockTask task, OutputStream out) throws IOException
+	{
+		byte[] decoded;
+		try {
+			decoded = task.join();
+		}
+		catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+
+		out.write(decoded);
+		return decoded.length;
+	}
+
+
+	/**
+	 * Returns true if a stream header starts at the specified bit.
+	 */
+	private static boolean isStreamHeader(BitInput input, long bit)
+	{
+		if (!input.ensure(bit + STREAM_HEADER_BITS)) return false;
+		int level = (int)input.getBits(bit + 24, 8);
+		return input.getBits(bit, 24) == 0x425A68 && level >= '1' && level <= '9';
+	}
+
+
+	/**
+	 * Checks that a block magic number found in the compressed data really
+	 * starts a block, by making sure its origPtr fits within the block size.
+	 */
+	private static boolean isBlockHeader(BitInput input, long bit, int level)
+	{
+		if (!input.ensure(bit + BLOCK_HEADER_BITS)) return false;
+		long origPtr = input.getBits(bit + 48 + 32 + 1, 24);
+		return origPtr < level * 100000;
+	}
+
+
+	/**
+	 * Checks that an end-of-stream magic number found in the compressed data
+	 * really ends the stream, by making sure it's followed by either the end
+	 * of input or another stream.
+	 */
+	private static boolean isStreamEnd(BitInput input, long bit)
+	{
+		if (!input.ensure(bit + STREAM_TRAILER_BITS)) return false;
+		long next = (bit + STREAM_TRAILER_BITS + 7) & ~7L;
+		if (!input.ensure(next + 1)) return true;
+		return isStreamHeader(input, next);
+	}
+
+
+
+	/**
+	 * Decompresses a single block by wrapping it in a stream of its own.
+	 */
+	private static class BlockTask extends RecursiveTask<byte[]>
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final int level;
+		private final byte[] bits;
+		private final long bitLength;
+		private final long blockCRC;
+
+
+		BlockTask(int level, byte[] bits, long bitLength, long blockCRC)
+		{
+			this.level = level;
+			this.bits = bits;
+			this.bitLength = bitLength;
+			this.blockCRC = blockCRC;
+		}
+
+
+		@Override
+		protected byte[] compute()
+		{
+			// Header, the block itself, then a trailer whose combined CRC is
+			// just the CRC of the one block
+			long totalBits = STREAM_HEADER_BITS + bitLength + STREAM_TRAILER_BITS;
+			byte[] stream = new byte[(int)((totalBits + 7) / 8)];
+			stream[0] = 'B';
+			stream[1] = 'Z';
+			stream[2] = 'h';
+			stream[3] = (byte)('0' + level);
+			System.arraycopy(bits, 0, stream, 4, bits.length);
+			putBits(stream, STREAM_HEADER_BITS + bitLength, END_MAGIC, 48);
+			putBits(stream, STREAM_HEADER_BITS + bitLength + 48, blockCRC, 32);
+
+			try {
+				InputStream in = new BZip2CompressorInputStream(new ByteArrayInputStream(stream));
+				ByteArrayOutputStream out = new ByteArrayOutputStream(level * 100000);
+				byte[] buffer = new byte[CurseLib.STREAM_BUFFER_SIZE];
+				int count;
+				while ((count = in.read(buffer)) != -1) out.write(buffer, 0, count);
+				in.close();
+				return out.toByteArray();
+			}
+			catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+
+		private static void putBits(byte[] dest, long bit, long value, int count)
+		{
+			for (int n = count - 1; n >= 0; n--, bit++) {
+				if (((value >>> n) & 1) != 0) dest[(int)(bit >>> 3)] |= 0x80 >>> (bit & 7);
+			}
+		}
+	}
+
+
+
+	/**
+	 * Buffers the compressed input and allows it to be read at any bit
+	 * position, discarding what has already been handed off.
+	 */
+	private static class BitInput
+	{
+		private final InputStream in;
+		private byte[] data = new byte[CurseLib.STREAM_BUFFER_SIZE * 4];
+		private int length = 0;
+
+		/** Absolute byte offset of data[0] */
+		private long baseByte = 0;
+
+		/** Absolute bit offset just past the buffered data */
+		private long limitBit = 0;
+
+		private boolean eof = false;
+
+
+		BitInput(InputStream in)
+		{
+			this.in = in;
+		}
+
+
+		/**
+		 * Reads ahead until bits up to, but not including, the specified bit
+		 * are buffered.  Returns false if the input ends first.
+		 */
+		boolean ensure(long endBit)
+		{
+			while (endBit > limitBit) {
+				if (eof) return false;
+				if (length == data.length) data = Arrays.copyOf(data, data.length * 2);
+
+				int count;
+				try {
+					count = in.read(data, length, data.length - length);
+				}
+				catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+
+				if (count < 0) eof = true;
+				else {
+					length += count;
+					limitBit = (baseByte + length) << 3;
+				}
+			}
+			return true;
+		}
+
+
+		int getBit(long bit)
+		{
+			return (data[(int)((bit >>> 3) - baseByte)] >>> (7 - (int)(bit & 7))) & 1;
+		}
+
+
+		long getBits(long bit, int count)
+		{
+			long value = 0;
+			for (int n = 0; n < count; n++) value = (value << 1) | getBit(bit + n);
+			return value;
+		}
+
+
+		/**
+		 * Returns the bits in the specified range, left aligned, with any
+		 * trailing bits of the last byte cleared.
+		 */
+		byte[] copyBits(long fromBit, long toBit)
+		{
+			long bitCount = toBit - fromBit;
+			byte[] out = new byte[(int)((bitCount + 7) / 8)];
+			int offset = (int)((fromBit >>> 3) - baseByte);
+			int shift = (int)(fromBit & 7);
+
+			for (int n = 0; n < out.length; n++) {
+				int hi = (data[offset + n] << shift) & 0xFF;
+				int lo = (shift != 0 && offset + n + 1 < length) ? (data[offset + n + 1] & 0xFF) >>> (8 - shift) : 0;
+				out[n] = (byte)(hi | lo);
+			}
+
+			int tail = (int)(bitCount & 7);
+			if (tail != 0) out[out.length - 1] &= 0xFF << (8 - tail);
+
+			return out;
+		}
+
+
+		/**
+		 * Drops buffered bytes that lie entirely before the specified bit.
+		 */
+		void discardBefore(long bit)
+		{
+			int drop = (int)((bit >>> 3) - baseByte);
+			if (drop <= 0) return;
+			System.arraycopy(data, drop, data, 0, length - drop);
+			length -= drop;
+			baseByte += drop;
+		}
+	}
+}
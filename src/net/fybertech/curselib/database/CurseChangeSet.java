@@ -0,0 +1,134 @@
+package net.fybertech.curselib.database;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Describes how the projects of a database changed after merging in
+ * another one, or after projects were removed.  Positions refer to the
+ * database's project array.
+ */
+public class CurseChangeSet 
+{
+	/** Positions of projects that were added */
+	private int[] added = new int[0];
+	private int addedCount = 0;
+	
+	/** Positions of projects that were replaced */
+	private int[] replaced = new int[0];
+	private int replacedCount = 0;
+	
+	/** Projects that were replaced, in the same order as their positions */
+	private CurseProject[] previous = new CurseProject[0];
+	
+	/** Projects that were removed */
+	private List<CurseProject> removed = new ArrayList<>();
+	
+	
+	
+	/**
+	 * Records a project added at the specified position.
+	 */
+	void addAdded(int position) 
+	{
+		if (addedCount == added.length) added = Arrays.copyOf(added, Math.max(16, addedCount * 2));
+		added[addedCount++] = position;
+	}
+	
+	
+	/**
+	 * Records the project at the specified position being replaced.
+	 */
+	void addReplaced(int position, CurseProject previousProject) 
+	{
+		if (replacedCount == replaced.length) {
+			replaced = Arrays.copyOf(replaced, Math.max(16, replacedCount * 2));
+			previous = Arrays.copyOf(previous, replaced.length);
+		}
+		replaced[replacedCount] = position;
+		previous[replacedCount++] = previousProject;
+	}
+	
+	
+	/**
+	 * Records a removed project.
+	 */
+	void addRemoved(CurseProject project) 
+	{
+		removed.add(project);
+	}
+	
+	
+	/**
+	 * Returns the positions of added projects.
+	 */
+	public int[] getAddedPositions() {
+		return Arrays.copyOf(added, addedCount);
+	}
+	
+	
+	/**
+	 * Returns the positions of replaced projects.
+	 */
+	public int[] getReplacedPositions() {
+		return Arrays.copyOf(replaced, replacedCount);
+	}
+	
+	
+	/**
+	 * Returns the projects that were replaced, in the same order as
+	 * getReplacedPositions().
+	 */
+	public CurseProject[] getReplacedProjects() {
+		return Arrays.copyOf(previous, replacedCount);
+	}
+	
+	
+	/**
+	 * Returns the projects that were removed.
+	 */
+	public List<CurseProject> getRemovedProjects() {
+		return Collections.unmodifiableList(removed);
+	}
+	
+	
+	/**
+	 * Returns the number of added projects.
+	 */
+	public int getAddedCount() {
+		return addedCount;
+	}
+	
+	
+	/**
+	 * Returns the number of replaced projects.
+	 */
+	public int getReplacedCount() {
+		return replacedCount;
+	}
+	
+	
+	/**
+	 * Returns the number of removed projects.
+	 */
+	public int getRemovedCount() {
+		return removed.size();
+	}
+	
+	
+	/**
+	 * Returns true if nothing changed.
+	 */
+	public boolean isEmpty() {
+		return addedCount == 0 && replacedCount == 0 && removed.isEmpty();
+	}
+	
+	
+	@Override
+	public String toString()
+	{
+		return "CurseChangeSet [added=" + addedCount + ", replaced=" + replacedCount + ", removed=" + removed.size() + "]";
+	}
+}
@@ -2,58 +2,90 @@ package net.fybertech.curselib.database;
 
 import java.io.File;
 import java.io.FileFilter;
-import java.io.FileReader;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.Enumeration;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Function;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
 import com.google.gson.JsonIOException;
 import com.google.gson.JsonSyntaxException;
 
 import net.fybertech.curselib.CurseLib;
 import net.fybertech.curselib.database.manifest.CurseManifest;
+import net.fybertech.curselib.util.IntIntMap;
 
 public class CurseDatabase 
 {
-	/** JSON Field - Current timestamp of this database */
-	private long timestamp;
+	/** 
+	 * The projects and indexes queries currently run against.  Changes build
+	 * a new generation and publish it here in a single write, so readers 
+	 * never lock and never see a half-built index.
+	 */
+	private volatile CurseDatabaseGeneration current;
 	
-	/** JSON Field - Array of projects in this database */
-	private CurseProject[] data;
+	/** Held while building the next generation, so changes don't overlap. */
+	private final Object writeLock = new Object();
 	
+	/** Cache files are found in and downloaded to, or null for the default */
+	private volatile CurseFileCache fileCache = null;
 	
 	
-		
-	/** A list of parsed project sections, such as "Mods", "Modpacks", "Texture Packs", etc. */ 
-	private List<String> sections = new ArrayList<>();
-	/** Projects sorted by section. */
-	private Map<String, List<CurseProject>> dataBySection = new HashMap<>();
 	
-	/** A list of parsed game versions, such as "1.7.10" */
-	private List<String> versions = new ArrayList<>();	
-	/** Projects sorted by version. */
-	private Map<String, List<CurseProject>> dataByVersion = new HashMap<>();
+	/**
+	 * Creates an empty database.
+	 */
+	public CurseDatabase()
+	{
+		this(new CurseDatabaseGeneration(0, new CurseProject[0], new ArrayList<CurseDatabaseSnapshot.Source>()));
+	}
+	
+	
+	/**
+	 * Creates a database starting at the specified generation.
+	 */
+	CurseDatabase(CurseDatabaseGeneration generation)
+	{
+		publish(generation);
+	}
+	
+	
+	/**
+	 * Makes the specified generation the one queries run against.
+	 */
+	private void publish(CurseDatabaseGeneration generation)
+	{
+		current = generation;
+	}
+	
+	
+	/**
+	 * Returns the generation queries currently run against.
+	 */
+	CurseDatabaseGeneration getGeneration()
+	{
+		return current;
+	}
 	
-	/** A list of parsed categories, such as "Redstone". */
-	private List<String> categories = new ArrayList<>();
-	/** Projects sorted by category. NOTE: Uses lower-cased key! */
-	private Map<String, List<CurseProject>> dataByCategory = new HashMap<>();
 	
 	/** 
-	 * A Map<File ID, Owner ID> to make it easier to find the associated
-	 * project belonging to a file ID. 
+	 * Returns a map of file IDs to owner project IDs to make it easier to
+	 * find the associated project belonging to a file ID.  Returns -1 for
+	 * unknown files.  It belongs to the current generation and is replaced
+	 * rather than changed when the database is processed, so it must be
+	 * treated as read-only.
 	 */
-	public Map<Integer, Integer> files = new HashMap<>();
+	public IntIntMap getFiles()
+	{
+		return current.files;
+	}
 	
 	
 	
@@ -62,7 +94,7 @@ public class CurseDatabase
 	 */
 	public long getDatabaseVersion()
 	{
-		return timestamp;
+		return current.timestamp;
 	}
 	
 	
@@ -70,7 +102,7 @@ public class CurseDatabase
 	 * Returns a list of all projects in the database.
 	 */
 	public List<CurseProject> getAllProjects() {
-		return Arrays.asList(this.data);
+		return current.getAllProjects();
 	}	
 	
 	
@@ -79,14 +111,14 @@ public class CurseDatabase
 	 * "Texture Packs", etc.
 	 */
 	public List<String> getSections() {
-		return this.sections;
+		return Collections.unmodifiableList(current.sections);
 	}
 	
 	/**
 	 * Returns a list of all projects in the specified section.
 	 */
 	public List<CurseProject> getProjectsBySection(String section) {
-		return dataBySection.get(section);
+		return current.getProjectsBySection(section);
 	}
 	
 	
@@ -94,7 +126,7 @@ public class CurseDatabase
 	 * Returns a list of parsed game versions, such as "1.7.10".
 	 */
 	public List<String> getVersions() {
-		return this.versions;
+		return Collections.unmodifiableList(current.versions);
 	}
 	
 	/**
@@ -102,7 +134,7 @@ public class CurseDatabase
 	 * version.
 	 */
 	public List<CurseProject> getProjectsByVersion(String version) {
-		return dataByVersion.get(version);
+		return current.getProjectsByVersion(version);
 	}
 	
 	
@@ -110,14 +142,14 @@ public class CurseDatabase
 	 * Returns a list of parsed categories, such as "Redstone".
 	 */
 	public List<String> getCategories() {
-		return this.categories;
+		return Collections.unmodifiableList(current.categories);
 	}
 	
 	/**
 	 * Returns a list of all projects matching the specified category.
 	 */
 	public List<CurseProject> getProjectsByCategory(String category) {
-		return dataByCategory.get(category.toLowerCase());
+		return current.getProjectsByCategory(category);
 	}
 	
 	
@@ -126,7 +158,7 @@ public class CurseDatabase
 	 */
 	public List<String> getSortedVersions()
 	{
-		List<String> list = new ArrayList<>(versions);	  
+		List<String> list = new ArrayList<>(current.versions);	  
 		java.util.Collections.sort(list, new Comparator<String>() {
 			@Override
 			public int compare(String o1, String o2) {
@@ -163,19 +195,7 @@ public class CurseDatabase
 	 */
 	public List<CurseProject> filterBySection(String section, List<CurseProject> inputList)
 	{
-		if (section == null) return new ArrayList<>();		
-		
-		List<CurseProject> sectionList = dataBySection.get(section);		
-		if (sectionList == null) return new ArrayList<>();
-		
-		List<CurseProject> outputList = new ArrayList<>();
-		if (inputList == null) inputList = Arrays.asList(data);
-		  
-		for (CurseProject d : inputList) {
-			if (sectionList.contains(d)) outputList.add(d);
-		}
-		  
-		return outputList;
+		return current.filterBySection(section, inputList);
 	}
 	
 	
@@ -184,20 +204,7 @@ public class CurseDatabase
 	 */
 	public List<CurseProject> filterByCategory(String category, List<CurseProject> inputList)
 	{
-		if (category == null) return new ArrayList<>();
-		category = category.toLowerCase();
-		
-		List<CurseProject> categoryList = dataByCategory.get(category);		
-		if (categoryList == null) return new ArrayList<>();
-		
-		List<CurseProject> outputList = new ArrayList<>();		
-		if (inputList == null) inputList = Arrays.asList(data);
-		
-		for (CurseProject d : inputList) {
-			if (categoryList.contains(d)) outputList.add(d);
-		}
-		  
-		return outputList;
+		return current.filterByCategory(category, inputList);
 	}
 	
 	
@@ -206,15 +213,7 @@ public class CurseDatabase
 	 */
 	public List<CurseProject> filterByName(String name, List<CurseProject> inputList)
 	{
-		List<CurseProject> outputList = new ArrayList<>();	
-		if (inputList == null) inputList = Arrays.asList(data);
-		name = name.toLowerCase();
-		  
-		for (CurseProject d : inputList) {
-			if (d.Name.toLowerCase().contains(name)) outputList.add(d);
-		}
-		  
-		return outputList;
+		return current.filterByName(name, inputList);
 	}
 	
 	
@@ -223,20 +222,7 @@ public class CurseDatabase
 	 */
 	public List<CurseProject> filterByAuthor(String name, List<CurseProject> inputList)
 	{
-		List<CurseProject> outputList = new ArrayList<>();	
-		if (inputList == null) inputList = Arrays.asList(data);
-		name = name.toLowerCase();
-		  
-		for (CurseProject d : inputList) {
-			if (d.PrimaryAuthorName.toLowerCase().contains(name)) outputList.add(d);
-			else {
-				for (CurseAuthor author : d.Authors) {
-					if (author.Name.toLowerCase().contains(name)) { outputList.add(d); break; }
-				}
-			}
-		}
-		  
-		return outputList;
+		return current.filterByAuthor(name, inputList);
 	}
 	
 	
@@ -245,23 +231,10 @@ public class CurseDatabase
 	 */
 	public List<CurseProject> filterByVersion(String version, List<CurseProject> inputList)
 	{
-		if (version == null) return new ArrayList<>();
-		
-		List<CurseProject> versionList = dataByVersion.get(version);		
-		if (versionList == null) return new ArrayList<>();	
-
-		List<CurseProject> outputList = new ArrayList<>();		
-		if (inputList == null) inputList = Arrays.asList(data);
-		
-		for (CurseProject d : inputList) {
-			if (versionList.contains(d)) outputList.add(d);
-		}
-		  
-		return outputList;
+		return current.filterByVersion(version, inputList);
 	}
 	
 	
-	
 	/**
 	 * Applies a filter type to the full database and returns the resulting 
 	 * list.
@@ -300,12 +273,33 @@ public class CurseDatabase
 	/**
 	 * Applies a list of filter types to the full database, in the order 
 	 * specified.
+	 * 
+	 * The filters are combined as bitsets of project positions, and the 
+	 * resulting list is only built once at the end.
 	 */
 	public List<CurseProject> filter(List<CurseFilter> filters) 
 	{
-		List<CurseProject> output = Arrays.asList(data);
-		for (CurseFilter filter : filters) output = filter(filter, output);
-		return output;		
+		return current.filter(filters);
+	}
+	
+	
+	/**
+	 * Searches project names, summaries, categories and authors, returning
+	 * up to limit results ranked by relevance and popularity.
+	 */
+	public List<CurseSearchIndex.Result> search(String query, int limit)
+	{
+		return getSearchIndex().search(query, limit);
+	}
+	
+	
+	/**
+	 * Returns the ranked search index for the current projects, building it
+	 * if needed.
+	 */
+	public CurseSearchIndex getSearchIndex()
+	{
+		return current.getSearchIndex();
 	}
 	
 	
@@ -321,91 +315,26 @@ public class CurseDatabase
 	 */
 	public void processDatabaseData()
 	{
-		sections.clear();
-		dataBySection.clear();
-		versions.clear();
-		dataByVersion.clear();
-		categories.clear();
-		dataByCategory.clear();
-		this.files.clear();
-		
-		
-		for (CurseProject itemData : this.data) {
-			if (itemData.CategorySection != null) {
-				String section = itemData.CategorySection.Name;
-				if (!sections.contains(section)) {
-					sections.add(section);
-					dataBySection.put(section, new ArrayList<CurseProject>());					
-				}				
-				List<CurseProject> list = dataBySection.get(section);
-				list.add(itemData);
-			}			
-			
-			
-			if (itemData.GameVersionLatestFiles != null) {
-				for (CurseFileStub cf : itemData.GameVersionLatestFiles) {
-					String ver = cf.GameVesion;
-					if (cf.GameVesion == null) continue;					
-					
-					if (!versions.contains(ver)) {
-						versions.add(ver);
-						dataByVersion.put(ver, new ArrayList<CurseProject>());							
-					}
-					
-					files.put(cf.ProjectFileID, itemData.Id);
-					
-					List<CurseProject> list = dataByVersion.get(ver);
-					list.add(itemData);
-				}
-			}
-			
-			
-			if (itemData.LatestFiles != null) {
-				for (CurseFile cf : itemData.LatestFiles) {
-					if (cf.GameVersion == null) continue;
-					for (String ver : cf.GameVersion) {
-						if (!versions.contains(ver)) {
-							versions.add(ver);
-							dataByVersion.put(ver, new ArrayList<CurseProject>());							
-						}
-						List<CurseProject> list = dataByVersion.get(ver);
-						list.add(itemData);
-					}					
-					
-					files.put(cf.Id, itemData.Id);
-				}
-			}
-			
-			
-			if (itemData.PrimaryCategoryName != null) {
-				String category = itemData.PrimaryCategoryName;
-				
-				if (!categories.contains(category)) {
-					categories.add(category);
-					dataByCategory.put(category.toLowerCase(), new ArrayList<CurseProject>());
-				}
-				
-				List<CurseProject> list = dataByCategory.get(category.toLowerCase());
-				list.add(itemData);
-			}
-			
-			if (itemData.Categories != null) {
-				for (CurseCategory cat : itemData.Categories) {
-					String category = cat.Name;
-					
-					if (!categories.contains(category)) {
-						categories.add(category);
-						dataByCategory.put(category.toLowerCase(), new ArrayList<CurseProject>());
-					}
-					
-					List<CurseProject> list = dataByCategory.get(category.toLowerCase());
-					list.add(itemData);
-				}
-			}
+		synchronized (writeLock) {
+			publish(current.processed());
+		}
+	}
+	
+	
+	/**
+	 * Updates the processed data for only the projects listed in the change
+	 * set, such as the one returned by mergeDatabase, instead of processing
+	 * the whole database again.
+	 * 
+	 * Falls back to processDatabaseData() if the database was never 
+	 * processed or projects were removed, and does nothing if the database
+	 * is already up to date.
+	 */
+	public void processDatabaseData(CurseChangeSet changes)
+	{
+		synchronized (writeLock) {
+			publish(current.processed(changes));
 		}
-		
-		Collections.sort(sections);
-		Collections.sort(categories);
 	}
 	
 	
@@ -417,33 +346,157 @@ public class CurseDatabase
 	 */
 	public static CurseDatabase Open(File dbFile, boolean processData) throws JsonSyntaxException, JsonIOException, IOException
 	{
-		GsonBuilder gsonBuilder = new GsonBuilder();
-		Gson gson = gsonBuilder.create();
+		return Open(dbFile, processData, new CurseDatabaseLoader());
+	}
+	
+	
+	/**
+	 * Opens the specified database JSON file using the provided loader, which
+	 * can be set up to skip unneeded project fields, and returns a database
+	 * object.
+	 * 
+	 * Projects are streamed from the file one at a time rather than bound as 
+	 * a single tree, so only the retained projects are kept in memory.
+	 */
+	public static CurseDatabase Open(File dbFile, boolean processData, CurseDatabaseLoader loader) throws JsonSyntaxException, JsonIOException, IOException
+	{
+		final List<CurseProject> projects = new ArrayList<>();
 		
-		FileReader reader = new FileReader(dbFile);
-		CurseDatabase db = gson.fromJson(reader, CurseDatabase.class);
-		reader.close();
+		long timestamp = loader.load(dbFile, new CurseDatabaseLoader.ProjectHandler() {
+			@Override
+			public void handleProject(CurseProject project) {
+				projects.add(project);
+			}
+		});
 		
-		if (db != null && processData) db.processDatabaseData();
+		List<CurseDatabaseSnapshot.Source> sources = new ArrayList<>();
+		sources.add(new CurseDatabaseSnapshot.Source(dbFile));
+		
+		CurseDatabase db = new CurseDatabase(new CurseDatabaseGeneration(timestamp, projects.toArray(new CurseProject[projects.size()]), sources));
+		
+		if (processData) db.processDatabaseData();
 		
 		return db;
 	}	
 	
 	
 	/**
-	 * Returns a project by its numeric ID, or null if not found.
+	 * Writes this database and its processed data to a binary snapshot file,
+	 * which can be opened much faster than the JSON databases it came from.
 	 */
-	public CurseProject getProjectById(int id) 
+	public void writeSnapshot(File snapshotFile) throws IOException
 	{
-		if (id == -1) return null;
+		CurseDatabaseSnapshot.write(this, snapshotFile);
+	}
+	
+	
+	/**
+	 * Opens a snapshot written by writeSnapshot, or returns null if it's 
+	 * missing, of an older format, or out of date.
+	 * 
+	 * The snapshot is out of date if it wasn't built from exactly the 
+	 * specified database files, in that order, or any of them changed since.
+	 * 
+	 * @throws IOException If the snapshot can't be read or is damaged.
+	 */
+	public static CurseDatabase openSnapshot(File snapshotFile, File... dbFiles) throws IOException
+	{
+		List<CurseDatabaseSnapshot.Source> sources = CurseDatabaseSnapshot.readSources(snapshotFile);
+		if (sources == null || sources.size() != dbFiles.length) return null;
 		
-		for (CurseProject item : data) {
-			if (item.Id == id) return item;
+		for (int n = 0; n < dbFiles.length; n++) {
+			if (!sources.get(n).equals(new CurseDatabaseSnapshot.Source(dbFiles[n]))) return null;
 		}
 		
-		return null;
+		return CurseDatabaseSnapshot.read(snapshotFile);
 	}
-
+	
+	
+	/**
+	 * Opens the specified database files, merged in order and processed, 
+	 * using the snapshot file when it's up to date.  Otherwise the databases
+	 * are loaded from JSON and a new snapshot is written for next time.
+	 * A snapshot that can't be read is reported and replaced the same way.
+	 * 
+	 * Files that don't exist are skipped, and null is returned if none do.
+	 */
+	public static CurseDatabase openMerged(File snapshotFile, File... dbFiles) throws JsonSyntaxException, JsonIOException, IOException
+	{
+		List<File> existing = new ArrayList<>();
+		for (File dbFile : dbFiles) {
+			if (dbFile.exists()) existing.add(dbFile);
+		}
+		if (existing.isEmpty()) return null;
+		
+		File[] files = existing.toArray(new File[existing.size()]);
+		CurseDatabase db = null;
+		try {
+			db = openSnapshot(snapshotFile, files);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		if (db != null) return db;
+		
+		CurseDatabaseLoader loader = new CurseDatabaseLoader();
+		db = Open(files[0], false, loader);
+		for (int n = 1; n < files.length; n++) db.mergeDatabase(Open(files[n], false, loader));
+		db.processDatabaseData();
+		
+		try {
+			db.writeSnapshot(snapshotFile);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		
+		return db;
+	}
+	
+	
+	/**
+	 * Returns a project by its numeric ID, or null if not found.
+	 */
+	public CurseProject getProjectById(int id) 
+	{
+		return current.getProjectById(id);
+	}
+	
+	
+	/**
+	 * Moves the projects into a compact store, where the fields used for
+	 * filtering and ranking are kept in primitive arrays, strings are shared,
+	 * and everything else is encoded outside of the Java heap.  Projects are
+	 * then only created as they're requested.
+	 * 
+	 * Best done after the database is merged and processed, since adding,
+	 * replacing or removing projects or processing the data again moves them
+	 * back into plain objects first.
+	 */
+	public void compactStorage()
+	{
+		synchronized (writeLock) {
+			publish(current.compacted());
+		}
+	}
+	
+	
+	/**
+	 * Returns true if the projects are currently held in the compact store.
+	 */
+	public boolean isCompactStorage()
+	{
+		return current.store != null;
+	}
+	
+	
+	/**
+	 * Returns the compact store holding the projects, or null if they're
+	 * plain objects.
+	 */
+	public CurseProjectStore getProjectStore()
+	{
+		return current.store;
+	}
+	
 	
 	/**
 	 * Returns the alphanumeric name for the requested project ID that's 
@@ -456,6 +509,18 @@ public class CurseDatabase
 	}
 	
 
+	/**
+	 * Returns the URL a file of the specified project is downloaded from.
+	 */
+	public String getFileUrl(int projectID, int fileID) throws FileNotFoundException
+	{
+		CurseProject project = getProjectById(projectID);
+		if (project == null) throw new FileNotFoundException("Unknown project " + projectID);
+		
+		return "http://minecraft.curseforge.com/projects/" + project.getProjectSlug() + "/files/" + fileID + "/download";
+	}
+	
+
 	/**
 	 * Finds or downloads the specified file for the specified project.
 	 * 
@@ -463,44 +528,152 @@ public class CurseDatabase
 	 */
 	public File getFileFromCache(int projectID, int fileID)
 	{
-		String slug = getProjectSlug(projectID);
-		
-		String url = "http://minecraft.curseforge.com/projects/" + slug + "/files/" + fileID + "/download";
-		// TODO - Remove debug output
-		System.out.println("File URL: " + url);
-		
-		File outputFile = null;
-		
-		File destinationPath = new File(CurseLib.FILECACHE_LOCATION, projectID + "/" + fileID + "/");		
-		
-		if (!destinationPath.exists()) destinationPath.mkdirs();
-		else {
-			File[] files = destinationPath.listFiles(new FileFilter() {
-				@Override
-				public boolean accept(File pathname) {
-					String filename = pathname.getName().toLowerCase();
-					return (filename.endsWith(".jar") || filename.endsWith(".zip"));
-				}				
-			});
-			
-			if (files.length > 0) {
-				outputFile = files[0];
-				System.out.println("Using existing file " + outputFile);
-			}
+		try {
+			return findOrDownloadFile(projectID, fileID);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
 		}
+	}
+	
+	
+	/**
+	 * Finds or downloads the specified file for the specified project, 
+	 * throwing if it can't be downloaded.
+	 * 
+	 * Files are looked up in the file cache's index.  A file that isn't 
+	 * indexed is downloaded and checked against its Curse fingerprint when
+	 * the database knows it, and downloaded once more if it doesn't match.
+	 * Concurrent requests for the same file share a single download.
+	 */
+	public File findOrDownloadFile(final int projectID, final int fileID) throws IOException
+	{
+		return getFileCache().getOrDownload(projectID, fileID, new Callable<File>() {
+			@Override
+			public File call() throws IOException {
+				return downloadToCache(projectID, fileID);
+			}
+		});
+	}
+	
+	
+	/**
+	 * Indexes an archive already in the file's cache directory or downloads
+	 * it, checking the fingerprint either way.
+	 */
+	private File downloadToCache(int projectID, int fileID) throws IOException
+	{
+		CurseFileCache cache = getFileCache();
+		long fingerprint = getFileFingerprint(projectID, fileID);
+		File destinationPath = cache.getFileDirectory(projectID, fileID);
 		
-		
-		if (outputFile == null) {
+		// Archives downloaded before the index existed
+		File[] files = destinationPath.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File pathname) {
+				String filename = pathname.getName().toLowerCase();
+				return (filename.endsWith(".jar") || filename.endsWith(".zip"));
+			}				
+		});
+		if (files != null && files.length > 0) {
 			try {
-				System.out.print("Downloading...");
-				outputFile = CurseLib.downloadFile(url, destinationPath, true);
-				System.out.println("done");
-			} catch (IOException e) {
-				e.printStackTrace();
+				if (isIntact(cache.put(projectID, fileID, files[0]), fingerprint)) return files[0];
+			} catch (FileNotFoundException e) {
+				// Evicted while it was being indexed, so download it again
 			}
 		}
 		
-		return outputFile;
+		for (int attempt = 0; attempt < 2; attempt++) {
+			File file = CurseLib.downloadFile(getFileUrl(projectID, fileID), destinationPath, true);
+			if (isIntact(cache.put(projectID, fileID, file), fingerprint)) return file;
+		}
+		
+		throw new IOException("File " + fileID + " doesn't match its fingerprint " + fingerprint);
+	}
+	
+	
+	/**
+	 * Returns true if a newly indexed file matches the expected fingerprint,
+	 * or if that's 0.  Otherwise the file is deleted and dropped from the 
+	 * cache.
+	 */
+	private boolean isIntact(CurseFileCache.Entry entry, long fingerprint)
+	{
+		if (fingerprint == 0 || entry.fingerprint == fingerprint) return true;
+		
+		getFileCache().remove(entry.fileID);
+		entry.file.delete();
+		return false;
+	}
+	
+	
+	/**
+	 * Returns the Curse fingerprint of a file among the latest files of its
+	 * project, or 0 if it isn't known.
+	 */
+	public long getFileFingerprint(int projectID, int fileID)
+	{
+		CurseProject project = getProjectById(projectID);
+		if (project == null || project.LatestFiles == null) return 0;
+		
+		for (CurseFile file : project.LatestFiles) {
+			if (file.Id == fileID) return file.PackageFingerprint;
+		}
+		return 0;
+	}
+	
+	
+	/**
+	 * Returns the file cache used by this database, by default the one in
+	 * CurseLib.FILECACHE_LOCATION.
+	 */
+	public CurseFileCache getFileCache()
+	{
+		CurseFileCache cache = fileCache;
+		return cache != null ? cache : CurseFileCache.getDefault();
+	}
+	
+	
+	public void setFileCache(CurseFileCache fileCache)
+	{
+		this.fileCache = fileCache;
+	}
+	
+	
+	/**
+	 * Finds or downloads every file of a modpack manifest in parallel, with
+	 * the defaults of CurseManifestDownloader.  The files are only pinned in
+	 * the file cache until this returns.
+	 * 
+	 * @return The result of each file, in manifest order.
+	 */
+	public List<CurseManifestDownloader.Result> downloadManifestFiles(CurseManifest manifest)
+	{
+		return new CurseManifestDownloader(this).download(manifest);
+	}
+	
+	
+	/**
+	 * Finds or downloads every file of a modpack manifest in parallel, while
+	 * they're held by a pin from pinManifestFiles.  The pin is left open, so
+	 * the files stay in the cache until the pack is assembled and the caller
+	 * closes it.
+	 * 
+	 * @return The result of each file, in manifest order.
+	 */
+	public List<CurseManifestDownloader.Result> downloadManifestFiles(CurseManifest manifest, CurseFileCache.Pin pin)
+	{
+		return new CurseManifestDownloader(this).download(manifest, pin);
+	}
+	
+	
+	/**
+	 * Pins every file of a modpack manifest in the file cache until the 
+	 * returned pin is closed, whether or not they're downloaded yet.
+	 */
+	public CurseFileCache.Pin pinManifestFiles(CurseManifest manifest)
+	{
+		return new CurseManifestDownloader(this).pin(manifest);
 	}
 	
 
@@ -512,97 +685,320 @@ public class CurseDatabase
 	public CurseManifest getModpackManifest(int id) 
 	{
 		CurseProject parent = getParentProjectOfFile(id);
+		if (parent == null) return null;
 		if (!parent.isModpack()) throw new RuntimeException("File ID " + id + " doesn't belong to a modpack!");
 		
 		File modpackFile = getFileFromCache(parent.Id, id);				
 		if (modpackFile == null) return null;
 		
-		String manifestString = null;
+		return readModpackManifest(id, modpackFile);
+	}
+	
+	
+	/**
+	 * Reads the manifest from a modpack archive, or returns null.  Manifests
+	 * of indexed files are cached by CurseManifestReader under the file's
+	 * fingerprint.
+	 */
+	private CurseManifest readModpackManifest(int fileID, File modpackFile)
+	{
+		CurseFileCache.Entry entry = getFileCache().getEntry(fileID);
+		long fingerprint = entry != null && entry.file.equals(modpackFile) ? entry.fingerprint : 0;
 		
-		ZipFile zip = null;
 		try {
-			zip = new ZipFile(modpackFile);		
-		
-			for (Enumeration<? extends ZipEntry> en = zip.entries(); en.hasMoreElements();) {
-				ZipEntry entry = en.nextElement();
-				
-				if (entry.getName().toLowerCase().equals("manifest.json")) {
-					try {
-						manifestString = new String(CurseLib.writeStreamToArray(zip.getInputStream(entry)));
-					} catch (IOException e) {					
-						e.printStackTrace();
-					}
-				}
-			}							
-		} catch (Exception e) {
+			return CurseManifestReader.read(modpackFile, fileID, fingerprint);
+		} catch (IOException e) {
 			e.printStackTrace();
-		}		
-		finally {			
-			try {
-				zip.close();
-			} catch (Exception e) {}
+			return null;
 		}
-		
-		
-		if (manifestString != null) {
-			GsonBuilder gsonBuilder = new GsonBuilder();
-			Gson gson = gsonBuilder.create();			
-			CurseManifest manifest = gson.fromJson(manifestString, CurseManifest.class);
-			return manifest;
+	}
+
+
+	/**
+	 * Asynchronous findOrDownloadFile.  The future completes exceptionally
+	 * if the file can't be downloaded.
+	 */
+	public CompletableFuture<File> getFileFromCacheAsync(final int projectID, final int fileID)
+	{
+		return CurseLib.supplyAsync(new Callable<File>() {
+			@Override
+			public File call() throws IOException {
+				return findOrDownloadFile(projectID, fileID);
+			}
+		});
+	}
+	
+	
+	/**
+	 * Asynchronous getModpackManifest.  The archive is found or downloaded
+	 * and then read on the async executor, and the future completes with 
+	 * null if the file isn't known or has no manifest.
+	 */
+	public CompletableFuture<CurseManifest> getModpackManifestAsync(int id)
+	{
+		CurseProject parent = getParentProjectOfFile(id);
+		if (parent == null) return CompletableFuture.completedFuture(null);
+		if (!parent.isModpack()) {
+			CompletableFuture<CurseManifest> future = new CompletableFuture<>();
+			future.completeExceptionally(new RuntimeException("File ID " + id + " doesn't belong to a modpack!"));
+			return future;
 		}
 		
-		return null;
+		return getFileFromCacheAsync(parent.Id, id).thenApplyAsync(new Function<File, CurseManifest>() {
+			@Override
+			public CurseManifest apply(File modpackFile) {
+				return readModpackManifest(id, modpackFile);
+			}
+		}, CurseLib.getAsyncExecutor());
+	}
+	
+	
+	/**
+	 * Asynchronous downloadManifestFiles.
+	 */
+	public CompletableFuture<List<CurseManifestDownloader.Result>> downloadManifestFilesAsync(final CurseManifest manifest)
+	{
+		return CurseLib.supplyAsync(new Callable<List<CurseManifestDownloader.Result>>() {
+			@Override
+			public List<CurseManifestDownloader.Result> call() {
+				return downloadManifestFiles(manifest);
+			}
+		});
+	}
+	
+	
+	/**
+	 * Asynchronous downloadManifestFiles, with the files held by the 
+	 * caller's pin.
+	 */
+	public CompletableFuture<List<CurseManifestDownloader.Result>> downloadManifestFilesAsync(final CurseManifest manifest, final CurseFileCache.Pin pin)
+	{
+		return CurseLib.supplyAsync(new Callable<List<CurseManifestDownloader.Result>>() {
+			@Override
+			public List<CurseManifestDownloader.Result> call() {
+				return downloadManifestFiles(manifest, pin);
+			}
+		});
+	}
+	
+	
+	/**
+	 * Asynchronous getModpackManifest followed by downloadManifestFiles, 
+	 * completing with null if there's no manifest.  The files aren't kept
+	 * pinned afterwards; to assemble the pack, read the manifest first and
+	 * use downloadManifestFilesAsync with a pin.
+	 */
+	public CompletableFuture<List<CurseManifestDownloader.Result>> downloadModpackAsync(int id)
+	{
+		return getModpackManifestAsync(id).thenCompose(new Function<CurseManifest, CompletionStage<List<CurseManifestDownloader.Result>>>() {
+			@Override
+			public CompletionStage<List<CurseManifestDownloader.Result>> apply(CurseManifest manifest) {
+				if (manifest == null) return CompletableFuture.completedFuture(null);
+				return downloadManifestFilesAsync(manifest);
+			}
+		});
 	}
 
 
 	/**
-	 * Returns the parent project ID for the specified file ID
+	 * Returns the parent project ID for the specified file ID, or -1 if the
+	 * file isn't known.
 	 */
 	public int getParentProjectIdOfFile(int fileId) 
 	{
-		return files.get(fileId);
+		return current.files.get(fileId);
 	}
 
 
 	/**
-	 * Returns the parent project for the specified file ID.
+	 * Returns the parent project for the specified file ID, or null if the
+	 * file isn't known.
 	 */
 	public CurseProject getParentProjectOfFile(int fileId) {
-		return getProjectById(getParentProjectIdOfFile(fileId));
+		CurseDatabaseGeneration generation = current;
+		return generation.getProjectById(generation.files.get(fileId));
 	}
 
 
 
 	/** 
 	 * Merges the specified database with the current one.
+	 * 
+	 * Projects with an ID already in this database replace the existing one
+	 * in place, and the rest are appended in order.
+	 * 
+	 * If this database has already been processed, the merged projects are
+	 * processed before they're published, so readers see either the old or
+	 * the new projects and indexes but never a mix.
+	 * 
+	 * The timestamp becomes that of the merged database, so merging one that
+	 * is no newer than any database merged before changes nothing.
+	 * 
+	 * @return The positions of added and replaced projects, which is empty if
+	 * the specified database isn't newer.  Pass it to 
+	 * processDatabaseData(CurseChangeSet) to update only those entries.
 	 */
-	public void mergeDatabase(CurseDatabase extraDB) 
+	public CurseChangeSet mergeDatabase(CurseDatabase extraDB) 
 	{
-		if (extraDB == null || (extraDB.getDatabaseVersion() <= this.getDatabaseVersion())) return;
+		CurseChangeSet changes = new CurseChangeSet();
+		if (extraDB == null) return changes;
+		
+		synchronized (writeLock) {
+			publish(merged(current, extraDB.current, changes));
+		}
 		
-		List<CurseProject> thisList = new ArrayList<>(Arrays.asList(this.data));
+		return changes;
+	}
+	
+	
+	/**
+	 * Merges the specified databases with the current one in order, as 
+	 * mergeDatabase does, but publishes only the result of merging all of 
+	 * them, so readers see either none of them or every one.
+	 */
+	void mergeDatabases(List<CurseDatabase> extraDBs)
+	{
+		synchronized (writeLock) {
+			CurseDatabaseGeneration next = current;
+			for (CurseDatabase extraDB : extraDBs) next = merged(next, extraDB.current, new CurseChangeSet());
+			publish(next);
+		}
+	}
+	
+	
+	/**
+	 * Builds the generation following the specified one with the extra
+	 * database merged in, recording the changes.
+	 */
+	private static CurseDatabaseGeneration merged(CurseDatabaseGeneration previous, CurseDatabaseGeneration extra, CurseChangeSet changes)
+	{
+		CurseDatabaseGeneration next = previous;
+		if (extra.timestamp > next.timestamp) next = applyUpdates(next, extra.getProjectArray(), changes);
 		
-		for (CurseProject itemExtra : extraDB.data) 
+		return next.withMerged(extra.sources, extra.timestamp);
+	}
+	
+	
+	/**
+	 * Replaces the projects and processed data with those of the specified
+	 * database in one step, keeping this database's own settings such as its
+	 * file cache.
+	 */
+	void replaceWith(CurseDatabase other)
+	{
+		synchronized (writeLock) {
+			publish(other.current);
+		}
+	}
+
+
+	/**
+	 * Adds the specified projects, replacing any existing projects with the
+	 * same ID in place and appending the rest in order.
+	 * 
+	 * As with mergeDatabase, a processed database stays processed.
+	 * 
+	 * @return The positions of added and replaced projects.
+	 */
+	public CurseChangeSet updateProjects(CurseProject... projects) 
+	{
+		CurseChangeSet changes = new CurseChangeSet();
+		
+		synchronized (writeLock) {
+			publish(applyUpdates(current, projects, changes));
+		}
+		
+		return changes;
+	}
+	
+	
+	/**
+	 * Builds the generation following the specified one with the projects
+	 * added or replaced, recording the changes.  Returns the same generation
+	 * if nothing changed.
+	 */
+	private static CurseDatabaseGeneration applyUpdates(CurseDatabaseGeneration previous, CurseProject[] projects, CurseChangeSet changes)
+	{
+		CurseDatabaseGeneration generation = previous.inflated();
+		CurseProject[] data = generation.data;
+		IntIntMap projectIndex = generation.copyProjectIndex();
+		CurseProject[] updated = data;
+		
+		List<CurseProject> appended = new ArrayList<>();
+		
+		for (CurseProject itemExtra : projects) 
 		{
-			boolean replaced = false;
+			int pos = projectIndex.get(itemExtra.Id);
+			
+			if (pos < 0) {
+				pos = data.length + appended.size();
+				appended.add(itemExtra);
+				projectIndex.put(itemExtra.Id, pos);
+				changes.addAdded(pos);
+			}
+			else if (pos < data.length) {
+				if (updated == data) updated = data.clone();
+				changes.addReplaced(pos, updated[pos]);
+				updated[pos] = itemExtra;
+			}
+			else {
+				// Replacing a project appended earlier in this merge
+				appended.set(pos - data.length, itemExtra);
+			}
+		}
+		
+		if (changes.isEmpty()) return previous;
+		
+		if (!appended.isEmpty()) {
+			updated = Arrays.copyOf(updated, data.length + appended.size());
+			for (int n = 0; n < appended.size(); n++) updated[data.length + n] = appended.get(n);
+		}
+		
+		CurseDatabaseGeneration next = generation.withProjects(updated, projectIndex);
+		if (previous.isProcessed()) next = next.processed(changes);
+		
+		return next;
+	}
+	
+	
+	/**
+	 * Removes the projects with the specified IDs.  The remaining projects 
+	 * keep their order but move to new positions, so processing the returned
+	 * change set processes the whole database again.
+	 * 
+	 * @return The removed projects.
+	 */
+	public CurseChangeSet removeProjects(int... ids) 
+	{
+		CurseChangeSet changes = new CurseChangeSet();
+		
+		synchronized (writeLock) {
+			CurseDatabaseGeneration generation = current.inflated();
+			CurseProject[] data = generation.data;
 			
-			int thisListSize = thisList.size();
-			for (int n = 0; n < thisListSize; n++) {
-				CurseProject itemThis = thisList.get(n);
-				if (itemThis.Id == itemExtra.Id) {
-					thisList.set(n,  itemExtra);
-					replaced = true;
-					//replaceCount++;
-					break;
+			BitSet removed = new BitSet(data.length);
+			for (int id : ids) {
+				int pos = generation.getPositionById(id);
+				if (pos >= 0 && !removed.get(pos)) {
+					removed.set(pos);
+					changes.addRemoved(data[pos]);
 				}
 			}
 			
-			if (replaced) continue;
+			if (removed.isEmpty()) return changes;
+			
+			CurseProject[] remaining = new CurseProject[data.length - removed.cardinality()];
+			int count = 0;
+			for (int pos = 0; pos < data.length; pos++) {
+				if (!removed.get(pos)) remaining[count++] = data[pos];
+			}
 			
-			thisList.add(itemExtra);
+			CurseDatabaseGeneration next = generation.withProjects(remaining, null);
+			if (generation.isProcessed()) next = next.processed();
+			publish(next);
 		}
 		
-		this.data = thisList.toArray(new CurseProject[0]);		
+		return changes;
 	}
 
 
@@ -610,6 +1006,7 @@ public class CurseDatabase
 	@Override
 	public String toString()
 	{
-		return "Database [timestamp=" + timestamp + ", data=" + data + "]";
+		CurseDatabaseGeneration generation = current;
+		return "Database [timestamp=" + generation.timestamp + ", data=" + (generation.store != null ? generation.store : generation.data) + "]";
 	}	
 }
@@ -0,0 +1,919 @@
+package net.fybertech.curselib.database;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import net.fybertech.curselib.util.IntIntMap;
+import net.fybertech.curselib.util.TrigramIndex;
+
+/**
+ * One version of a CurseDatabase's projects and the indexes built over
+ * them.
+ *
+ * A generation is only changed by the thread building it, before it's
+ * published through CurseDatabase's volatile reference, and never again
+ * afterwards.  Readers take the current generation once per query and always
+ * see a consistent set of projects and indexes without locking, while the
+ * next generation is built off to the side, sharing whatever didn't change.
+ */
+class CurseDatabaseGeneration
+{
+	/** Current timestamp of the database */
+	final long timestamp;
+
+	/** The projects, or null while they're in the compact store */
+	CurseProject[] data;
+
+	/** Compact storage holding the projects instead of the data array, or null. */
+	CurseProjectStore store = null;
+
+	/** Whether the processed data matches the projects, wherever they're held. */
+	private boolean processed = false;
+
+	/** The JSON files the database was opened and merged from, for checking snapshots. */
+	List<CurseDatabaseSnapshot.Source> sources;
+
+
+	/** A list of parsed project sections, such as "Mods", "Modpacks", "Texture Packs", etc. */
+	List<String> sections = new ArrayList<>();
+	/** Positions in the data array of the projects in each section. */
+	Map<String, BitSet> bitsBySection = new HashMap<>();
+
+	/** A list of parsed game versions, such as "1.7.10" */
+	List<String> versions = new ArrayList<>();
+	/** Positions in the data array of the projects with files for each version. */
+	Map<String, BitSet> bitsByVersion = new HashMap<>();
+
+	/** A list of parsed categories, such as "Redstone". */
+	List<String> categories = new ArrayList<>();
+	/** The same categories, for quick duplicate checks. */
+	Set<String> categorySet = new HashSet<>();
+	/** Positions in the data array of the projects in each category. NOTE: Uses lower-cased key! */
+	Map<String, BitSet> bitsByCategory = new HashMap<>();
+
+	/** File IDs to owner project IDs, returning -1 for unknown files. */
+	IntIntMap files = new IntIntMap();
+
+	/** Lower-cased project names, by position in the data array. */
+	private String[] lowerNames = null;
+	/** Lower-cased primary and other author names, by position in the data array. */
+	private String[][] lowerAuthors = null;
+	/** Trigrams of the lower-cased project names. */
+	private TrigramIndex nameIndex = null;
+	/** Trigrams of the lower-cased author names. */
+	private TrigramIndex authorIndex = null;
+	/** Whether the text indexes above match the data array. */
+	private boolean textIndexCurrent = false;
+
+	/** Ranked text search over the projects, built on first use. */
+	private volatile CurseSearchIndex searchIndex = null;
+
+	/** Position of each project in the data array, keyed by project ID. */
+	private IntIntMap projectIndex;
+
+	/** The project each position was last indexed as, or null if the data hasn't been processed. */
+	CurseProject[] indexedProjects = null;
+
+	/**
+	 * Bitsets made or copied while this generation is built from an older
+	 * one, which may be changed.  The others are still shared with the older
+	 * generation and are copied on first change.  Null when none are shared.
+	 */
+	private Set<BitSet> ownedBits = null;
+
+
+
+	/**
+	 * Creates an unprocessed generation holding the specified projects.
+	 */
+	CurseDatabaseGeneration(long timestamp, CurseProject[] data, List<CurseDatabaseSnapshot.Source> sources)
+	{
+		this.timestamp = timestamp;
+		this.data = data;
+		this.sources = sources;
+		buildProjectIndex();
+	}
+
+
+	/**
+	 * Creates a copy sharing all of the specified generation's projects and
+	 * indexes.
+	 */
+	private CurseDatabaseGeneration(CurseDatabaseGeneration other)
+	{
+		this(other, other.timestamp);
+	}
+
+
+	/**
+	 * Creates a copy sharing all of the specified generation's projects and
+	 * indexes, with a different timestamp.
+	 */
+	private CurseDatabaseGeneration(CurseDatabaseGeneration other, long timestamp)
+	{
+		this.timestamp = timestamp;
+		data = other.data;
+		store = other.store;
+		processed = other.processed;
+		sources = other.sources;
+		sections = other.sections;
+		bitsBySection = other.bitsBySection;
+		versions = other.versions;
+		bitsByVersion = other.bitsByVersion;
+		categories = other.categories;
+		categorySet = other.categorySet;
+		bitsByCategory = other.bitsByCategory;
+		files = other.files;
+		lowerNames = other.lowerNames;
+		lowerAuthors = other.lowerAuthors;
+		nameIndex = other.nameIndex;
+		authorIndex = other.authorIndex;
+		textIndexCurrent = other.textIndexCurrent;
+		searchIndex = other.searchIndex;
+		projectIndex = other.projectIndex;
+		indexedProjects = other.indexedProjects;
+	}
+
+
+
+	/**
+	 * Returns a read-only list of all projects.
+	 */
+	List<CurseProject> getAllProjects()
+	{
+		return store != null ? store.asList() : Collections.unmodifiableList(Arrays.asList(data));
+	}
+
+
+	List<CurseProject> getProjectsBySection(String section)
+	{
+		BitSet bits = bitsBySection.get(section);
+		return bits == null ? null : getProjectsByBits(bits);
+	}
+
+
+	List<CurseProject> getProjectsByVersion(String version)
+	{
+		BitSet bits = bitsByVersion.get(version);
+		return bits == null ? null : getProjectsByBits(bits);
+	}
+
+
+	List<CurseProject> getProjectsByCategory(String category)
+	{
+		BitSet bits = bitsByCategory.get(category.toLowerCase());
+		return bits == null ? null : getProjectsByBits(bits);
+	}
+
+
+	List<CurseProject> filterBySection(String section, List<CurseProject> inputList)
+	{
+		if (section == null) return new ArrayList<>();
+		return filterByBits(bitsBySection.get(section), inputList);
+	}
+
+
+	List<CurseProject> filterByCategory(String category, List<CurseProject> inputList)
+	{
+		if (category == null) return new ArrayList<>();
+		return filterByBits(bitsByCategory.get(category.toLowerCase()), inputList);
+	}
+
+
+	List<CurseProject> filterByVersion(String version, List<CurseProject> inputList)
+	{
+		if (version == null) return new ArrayList<>();
+		return filterByBits(bitsByVersion.get(version), inputList);
+	}
+
+
+	List<CurseProject> filterByName(String name, List<CurseProject> inputList)
+	{
+		name = name.toLowerCase();
+		if (inputList == null && textIndexCurrent) return getProjectsByBits(findByName(name, null));
+
+		List<CurseProject> outputList = new ArrayList<>();
+		if (inputList == null) inputList = getAllProjects();
+
+		for (CurseProject d : inputList) {
+			if (textIndexCurrent) {
+				int pos = getProjectPosition(d);
+				if (pos >= 0 ? lowerNames[pos].contains(name) : matchesName(d, name)) outputList.add(d);
+			}
+			else if (matchesName(d, name)) outputList.add(d);
+		}
+
+		return outputList;
+	}
+
+
+	List<CurseProject> filterByAuthor(String name, List<CurseProject> inputList)
+	{
+		name = name.toLowerCase();
+		if (inputList == null && textIndexCurrent) return getProjectsByBits(findByAuthor(name, null));
+
+		List<CurseProject> outputList = new ArrayList<>();
+		if (inputList == null) inputList = getAllProjects();
+
+		for (CurseProject d : inputList) {
+			if (textIndexCurrent) {
+				int pos = getProjectPosition(d);
+				if (pos >= 0 ? containsAny(lowerAuthors[pos], name) : matchesAuthor(d, name)) outputList.add(d);
+			}
+			else if (matchesAuthor(d, name)) outputList.add(d);
+		}
+
+		return outputList;
+	}
+
+
+	/**
+	 * Applies a list of filters to all projects as bitsets of positions,
+	 * building the resulting list once at the end.
+	 */
+	List<CurseProject> filter(List<CurseFilter> filters)
+	{
+		BitSet bits = new BitSet(projectCount());
+		bits.set(0, projectCount());
+
+		for (CurseFilter filter : filters) {
+			if (bits.isEmpty()) break;
+			applyFilter(filter, bits);
+		}
+
+		return getProjectsByBits(bits);
+	}
+
+
+	/**
+	 * Returns the ranked search index for the projects, building it if
+	 * needed.  Two threads may both build it, in which case either result
+	 * is kept.
+	 */
+	CurseSearchIndex getSearchIndex()
+	{
+		CurseSearchIndex index = searchIndex;
+		if (index == null) searchIndex = index = new CurseSearchIndex(getAllProjects());
+		return index;
+	}
+
+
+	CurseProject getProjectById(int id)
+	{
+		if (id == -1) return null;
+
+		int pos = projectIndex.get(id);
+		return pos < 0 ? null : project(pos);
+	}
+
+
+	/**
+	 * Returns the position of the first project with the specified ID, or -1.
+	 */
+	int getPositionById(int id)
+	{
+		return projectIndex.get(id);
+	}
+
+
+	/**
+	 * Returns true if the processed data matches every project currently in
+	 * the generation.
+	 */
+	boolean isProcessed()
+	{
+		return processed;
+	}
+
+
+	/**
+	 * Returns every project as an array, creating them if they're in the
+	 * compact store.  The array must not be changed.
+	 */
+	CurseProject[] getProjectArray()
+	{
+		return store != null ? store.toArray() : data;
+	}
+
+
+	int projectCount()
+	{
+		return store != null ? store.size() : data.length;
+	}
+
+
+	private CurseProject project(int pos)
+	{
+		return store != null ? store.get(pos) : data[pos];
+	}
+
+
+	private int projectId(int pos)
+	{
+		return store != null ? store.getId(pos) : data[pos].Id;
+	}
+
+
+
+	/**
+	 * Returns a generation with the sources of a merged database added, and
+	 * its timestamp if that's later.
+	 */
+	CurseDatabaseGeneration withMerged(List<CurseDatabaseSnapshot.Source> extraSources, long extraTimestamp)
+	{
+		CurseDatabaseGeneration next = new CurseDatabaseGeneration(this, Math.max(timestamp, extraTimestamp));
+		next.sources = new ArrayList<>(sources);
+		next.sources.addAll(extraSources);
+		return next;
+	}
+
+
+	/**
+	 * Returns a generation holding the projects as plain objects, which is
+	 * this one unless they're in the compact store.
+	 */
+	CurseDatabaseGeneration inflated()
+	{
+		if (store == null) return this;
+
+		CurseDatabaseGeneration next = new CurseDatabaseGeneration(this);
+		next.data = store.toArray();
+		next.store = null;
+		if (processed) next.indexedProjects = next.data.clone();
+		return next;
+	}
+
+
+	/**
+	 * Returns a generation with the projects moved into a compact store.
+	 */
+	CurseDatabaseGeneration compacted()
+	{
+		if (store != null) return this;
+
+		CurseDatabaseGeneration next = new CurseDatabaseGeneration(this);
+		next.store = new CurseProjectStore(data);
+		next.data = null;
+		next.indexedProjects = null;
+		next.searchIndex = null;
+		return next;
+	}
+
+
+	/**
+	 * Returns a generation with the projects replaced by the specified ones
+	 * and the same, now out of date, processed data.  The project index is
+	 * rebuilt if one isn't given.
+	 */
+	CurseDatabaseGeneration withProjects(CurseProject[] newData, IntIntMap newProjectIndex)
+	{
+		CurseDatabaseGeneration next = new CurseDatabaseGeneration(inflated());
+		next.data = newData;
+		if (newProjectIndex != null) next.projectIndex = newProjectIndex;
+		else next.buildProjectIndex();
+		next.processed = false;
+		next.textIndexCurrent = false;
+		next.searchIndex = null;
+		return next;
+	}
+
+
+	/**
+	 * Returns a copy of the project index which can be changed.
+	 */
+	IntIntMap copyProjectIndex()
+	{
+		return new IntIntMap(projectIndex);
+	}
+
+
+	/**
+	 * Returns a generation with the projects processed from scratch.
+	 */
+	CurseDatabaseGeneration processed()
+	{
+		CurseDatabaseGeneration source = inflated();
+		CurseDatabaseGeneration next = new CurseDatabaseGeneration(source.timestamp, source.data, source.sources);
+
+		next.indexedProjects = new CurseProject[next.data.length];
+		for (int pos = 0; pos < next.data.length; pos++) {
+			next.indexProject(pos, next.data[pos]);
+		}
+
+		next.buildTextIndexes();
+
+		Collections.sort(next.sections);
+		Collections.sort(next.categories);
+
+		next.processed = true;
+		return next;
+	}
+
+
+	/**
+	 * Returns a generation with the processed data updated for only the
+	 * projects in the change set.  The bitsets, file map and trigram indexes
+	 * are shared with this generation, and only the parts the changes touch
+	 * are copied.  Processes from scratch if this generation was never
+	 * processed or projects were removed, and returns this generation if
+	 * it's already processed.
+	 */
+	CurseDatabaseGeneration processed(CurseChangeSet changes)
+	{
+		if (isProcessed()) return this;
+
+		CurseDatabaseGeneration source = inflated();
+		if (source.indexedProjects == null || changes.getRemovedCount() > 0 || source.indexedProjects.length > source.data.length) {
+			return processed();
+		}
+
+		CurseDatabaseGeneration next = new CurseDatabaseGeneration(source);
+		next.sections = new ArrayList<>(sections);
+		next.versions = new ArrayList<>(versions);
+		next.categories = new ArrayList<>(categories);
+		next.categorySet = new HashSet<>(categorySet);
+		next.bitsBySection = new HashMap<>(bitsBySection);
+		next.bitsByVersion = new HashMap<>(bitsByVersion);
+		next.bitsByCategory = new HashMap<>(bitsByCategory);
+		next.ownedBits = Collections.newSetFromMap(new IdentityHashMap<BitSet, Boolean>());
+		next.files = new IntIntMap(files);
+		next.indexedProjects = Arrays.copyOf(source.indexedProjects, next.data.length);
+		next.searchIndex = null;
+
+		int[] replaced = changes.getReplacedPositions();
+		int[] added = changes.getAddedPositions();
+
+		for (int pos : replaced) {
+			next.unindexProject(pos, next.indexedProjects[pos]);
+			next.indexProject(pos, next.data[pos]);
+		}
+		for (int pos : added) {
+			if (next.indexedProjects[pos] != null) next.unindexProject(pos, next.indexedProjects[pos]);
+			next.indexProject(pos, next.data[pos]);
+		}
+
+		if (lowerNames != null) {
+			next.lowerNames = Arrays.copyOf(lowerNames, next.data.length);
+			next.lowerAuthors = Arrays.copyOf(lowerAuthors, next.data.length);
+			next.nameIndex = new TrigramIndex(nameIndex);
+			next.authorIndex = new TrigramIndex(authorIndex);
+			for (int pos : replaced) next.indexText(pos);
+			for (int pos : added) next.indexText(pos);
+			next.textIndexCurrent = true;
+		}
+		else next.buildTextIndexes();
+
+		next.ownedBits = null;
+		next.processed = true;
+		return next;
+	}
+
+
+	/**
+	 * Rebuilds the indexes that aren't stored in a snapshot once its
+	 * sections, versions, categories and files have been read back.
+	 */
+	void restoreProcessedData()
+	{
+		indexedProjects = data.clone();
+		buildTextIndexes();
+		processed = true;
+	}
+
+
+
+	/**
+	 * Returns true if the project name contains the lower-cased string.
+	 */
+	private static boolean matchesName(CurseProject d, String lowerName)
+	{
+		return d.Name.toLowerCase().contains(lowerName);
+	}
+
+
+	/**
+	 * Returns true if the primary author or any other author's name contains
+	 * the lower-cased string.
+	 */
+	private static boolean matchesAuthor(CurseProject d, String lowerName)
+	{
+		if (d.PrimaryAuthorName.toLowerCase().contains(lowerName)) return true;
+		if (d.Authors == null) return false;
+
+		for (CurseAuthor author : d.Authors) {
+			if (author.Name.toLowerCase().contains(lowerName)) return true;
+		}
+
+		return false;
+	}
+
+
+	/**
+	 * Returns true if any of the strings contains the specified string.
+	 */
+	private static boolean containsAny(String[] strings, String value)
+	{
+		for (String string : strings) {
+			if (string.contains(value)) return true;
+		}
+		return false;
+	}
+
+
+	/**
+	 * Returns the positions of projects whose lower-cased name contains the
+	 * lower-cased string, using the trigram index to pick candidates.  If
+	 * restrictTo isn't null, only those positions are considered.
+	 */
+	private BitSet findByName(String lowerName, BitSet restrictTo)
+	{
+		BitSet result = new BitSet(projectCount());
+		int[] candidates = nameIndex.getCandidates(lowerName);
+
+		if (candidates == null) {
+			BitSet scan = restrictTo;
+			if (scan == null) {
+				scan = new BitSet(projectCount());
+				scan.set(0, projectCount());
+			}
+			for (int n = scan.nextSetBit(0); n >= 0; n = scan.nextSetBit(n + 1)) {
+				if (lowerNames[n].contains(lowerName)) result.set(n);
+			}
+		}
+		else {
+			for (int n : candidates) {
+				if (restrictTo != null && !restrictTo.get(n)) continue;
+				if (lowerNames[n].contains(lowerName)) result.set(n);
+			}
+		}
+
+		return result;
+	}
+
+
+	/**
+	 * Returns the positions of projects with an author whose lower-cased name
+	 * contains the lower-cased string, using the trigram index to pick
+	 * candidates.  If restrictTo isn't null, only those positions are
+	 * considered.
+	 */
+	private BitSet findByAuthor(String lowerName, BitSet restrictTo)
+	{
+		BitSet result = new BitSet(projectCount());
+		int[] candidates = authorIndex.getCandidates(lowerName);
+
+		if (candidates == null) {
+			BitSet scan = restrictTo;
+			if (scan == null) {
+				scan = new BitSet(projectCount());
+				scan.set(0, projectCount());
+			}
+			for (int n = scan.nextSetBit(0); n >= 0; n = scan.nextSetBit(n + 1)) {
+				if (containsAny(lowerAuthors[n], lowerName)) result.set(n);
+			}
+		}
+		else {
+			for (int n : candidates) {
+				if (restrictTo != null && !restrictTo.get(n)) continue;
+				if (containsAny(lowerAuthors[n], lowerName)) result.set(n);
+			}
+		}
+
+		return result;
+	}
+
+
+	/**
+	 * Builds the lower-cased name and author tables and their trigram
+	 * indexes.
+	 */
+	private void buildTextIndexes()
+	{
+		lowerNames = new String[projectCount()];
+		lowerAuthors = new String[projectCount()][];
+		nameIndex = new TrigramIndex();
+		authorIndex = new TrigramIndex();
+
+		for (int pos = 0; pos < projectCount(); pos++) indexText(pos);
+
+		nameIndex.compact();
+		authorIndex.compact();
+		textIndexCurrent = true;
+	}
+
+
+	/**
+	 * Stores the lower-cased name and authors of the project at the
+	 * specified position and adds them to the trigram indexes.
+	 */
+	private void indexText(int pos)
+	{
+		CurseProject itemData = project(pos);
+
+		lowerNames[pos] = itemData.Name == null ? "" : itemData.Name.toLowerCase();
+		nameIndex.insert(pos, lowerNames[pos]);
+
+		int authorCount = itemData.Authors == null ? 0 : itemData.Authors.length;
+		String[] list = new String[authorCount + 1];
+		list[0] = itemData.PrimaryAuthorName == null ? "" : itemData.PrimaryAuthorName.toLowerCase();
+		for (int n = 0; n < authorCount; n++) {
+			String author = itemData.Authors[n].Name;
+			list[n + 1] = author == null ? "" : author.toLowerCase();
+		}
+		lowerAuthors[pos] = list;
+		for (String author : list) authorIndex.insert(pos, author);
+	}
+
+
+	/**
+	 * Returns the projects from the input list whose positions are set in the
+	 * specified bits, keeping their order.  A null input list means all
+	 * projects.
+	 */
+	private List<CurseProject> filterByBits(BitSet bits, List<CurseProject> inputList)
+	{
+		if (bits == null) return new ArrayList<>();
+		if (inputList == null) return getProjectsByBits(bits);
+
+		List<CurseProject> outputList = new ArrayList<>();
+		for (CurseProject d : inputList) {
+			int pos = getProjectPosition(d);
+			if (pos >= 0 && bits.get(pos)) outputList.add(d);
+		}
+
+		return outputList;
+	}
+
+
+	/**
+	 * Returns the position of the specified project in the data array, or -1
+	 * if that exact project isn't part of this generation.  Where several
+	 * projects share an ID, only the first is found.
+	 */
+	private int getProjectPosition(CurseProject d)
+	{
+		int pos = projectIndex.get(d.Id);
+		return pos >= 0 && project(pos) == d ? pos : -1;
+	}
+
+
+	/**
+	 * Returns the projects whose positions are set in the specified bits, in
+	 * database order.
+	 */
+	private List<CurseProject> getProjectsByBits(BitSet bits)
+	{
+		List<CurseProject> outputList = new ArrayList<>(bits.cardinality());
+		for (int n = bits.nextSetBit(0); n >= 0 && n < projectCount(); n = bits.nextSetBit(n + 1)) {
+			outputList.add(project(n));
+		}
+		return outputList;
+	}
+
+
+	/**
+	 * Clears the positions of any projects not matching the filter.
+	 */
+	private void applyFilter(CurseFilter filter, BitSet bits)
+	{
+		BitSet filterBits = null;
+
+		switch (filter.filterType) {
+			case SECTION:
+				if (filter.filterValue != null) filterBits = bitsBySection.get(filter.filterValue);
+				break;
+			case CATEGORY:
+				if (filter.filterValue != null) filterBits = bitsByCategory.get(filter.filterValue.toLowerCase());
+				break;
+			case VERSION:
+				if (filter.filterValue != null) filterBits = bitsByVersion.get(filter.filterValue);
+				break;
+			case NAME: {
+				String name = filter.filterValue.toLowerCase();
+				if (textIndexCurrent) {
+					filterBits = findByName(name, bits);
+					break;
+				}
+				for (int n = bits.nextSetBit(0); n >= 0; n = bits.nextSetBit(n + 1)) {
+					if (!matchesName(project(n), name)) bits.clear(n);
+				}
+				return;
+			}
+			case AUTHOR: {
+				String name = filter.filterValue.toLowerCase();
+				if (textIndexCurrent) {
+					filterBits = findByAuthor(name, bits);
+					break;
+				}
+				for (int n = bits.nextSetBit(0); n >= 0; n = bits.nextSetBit(n + 1)) {
+					if (!matchesAuthor(project(n), name)) bits.clear(n);
+				}
+				return;
+			}
+			default:
+				return;
+		}
+
+		if (filterBits == null) bits.clear();
+		else bits.and(filterBits);
+	}
+
+
+	/**
+	 * Adds the project at the specified position to the sections, versions,
+	 * categories and files it belongs to.
+	 */
+	private void indexProject(int pos, CurseProject itemData)
+	{
+		indexedProjects[pos] = itemData;
+
+		if (itemData.CategorySection != null) {
+			String section = itemData.CategorySection.Name;
+			BitSet bits = writableBits(bitsBySection, section);
+			if (bits == null) {
+				bits = newBits(bitsBySection, section);
+				addSorted(sections, section);
+			}
+			bits.set(pos);
+		}
+
+
+		if (itemData.GameVersionLatestFiles != null) {
+			for (CurseFileStub cf : itemData.GameVersionLatestFiles) {
+				if (cf.GameVesion == null) continue;
+
+				addVersion(cf.GameVesion, pos);
+				files.put(cf.ProjectFileID, itemData.Id);
+			}
+		}
+
+
+		if (itemData.LatestFiles != null) {
+			for (CurseFile cf : itemData.LatestFiles) {
+				if (cf.GameVersion == null) continue;
+				for (String ver : cf.GameVersion) addVersion(ver, pos);
+
+				files.put(cf.Id, itemData.Id);
+			}
+		}
+
+
+		if (itemData.PrimaryCategoryName != null) addCategory(itemData.PrimaryCategoryName, pos);
+
+		if (itemData.Categories != null) {
+			for (CurseCategory cat : itemData.Categories) addCategory(cat.Name, pos);
+		}
+	}
+
+
+	/**
+	 * Removes a previously indexed project from the specified position,
+	 * dropping any section, version or category left without projects.
+	 */
+	private void unindexProject(int pos, CurseProject itemData)
+	{
+		indexedProjects[pos] = null;
+
+		if (itemData.CategorySection != null) {
+			String section = itemData.CategorySection.Name;
+			if (clearBit(bitsBySection, section, pos)) sections.remove(section);
+		}
+
+		if (itemData.GameVersionLatestFiles != null) {
+			for (CurseFileStub cf : itemData.GameVersionLatestFiles) {
+				if (cf.GameVesion == null) continue;
+				if (clearBit(bitsByVersion, cf.GameVesion, pos)) versions.remove(cf.GameVesion);
+				if (files.get(cf.ProjectFileID) == itemData.Id) files.remove(cf.ProjectFileID);
+			}
+		}
+
+		if (itemData.LatestFiles != null) {
+			for (CurseFile cf : itemData.LatestFiles) {
+				if (cf.GameVersion == null) continue;
+				for (String ver : cf.GameVersion) {
+					if (clearBit(bitsByVersion, ver, pos)) versions.remove(ver);
+				}
+				if (files.get(cf.Id) == itemData.Id) files.remove(cf.Id);
+			}
+		}
+
+		if (itemData.PrimaryCategoryName != null) removeCategory(itemData.PrimaryCategoryName, pos);
+
+		if (itemData.Categories != null) {
+			for (CurseCategory cat : itemData.Categories) removeCategory(cat.Name, pos);
+		}
+	}
+
+
+	private void addVersion(String ver, int pos)
+	{
+		BitSet bits = writableBits(bitsByVersion, ver);
+		if (bits == null) {
+			bits = newBits(bitsByVersion, ver);
+			versions.add(ver);
+		}
+		bits.set(pos);
+	}
+
+
+	private void addCategory(String category, int pos)
+	{
+		if (categorySet.add(category)) addSorted(categories, category);
+
+		String key = category.toLowerCase();
+		BitSet bits = writableBits(bitsByCategory, key);
+		if (bits == null) bits = newBits(bitsByCategory, key);
+		bits.set(pos);
+	}
+
+
+	private void removeCategory(String category, int pos)
+	{
+		String key = category.toLowerCase();
+		if (!clearBit(bitsByCategory, key, pos)) return;
+
+		// Drop every spelling of the now empty category
+		for (Iterator<String> it = categories.iterator(); it.hasNext();) {
+			String name = it.next();
+			if (name.toLowerCase().equals(key)) {
+				it.remove();
+				categorySet.remove(name);
+			}
+		}
+	}
+
+
+	/**
+	 * Clears a position from the bits stored under the key, removing the key
+	 * and returning true if no positions are left.
+	 */
+	private boolean clearBit(Map<String, BitSet> map, String key, int pos)
+	{
+		BitSet bits = map.get(key);
+		if (bits == null || !bits.get(pos)) return false;
+
+		if (bits.nextSetBit(0) == pos && bits.nextSetBit(pos + 1) < 0) {
+			map.remove(key);
+			return true;
+		}
+
+		writableBits(map, key).clear(pos);
+		return false;
+	}
+
+
+	/**
+	 * Returns the bits stored under the key, first replacing them with a
+	 * copy if they're shared with an older generation, or null if there are
+	 * none.
+	 */
+	private BitSet writableBits(Map<String, BitSet> map, String key)
+	{
+		BitSet bits = map.get(key);
+		if (bits == null || ownedBits == null || ownedBits.contains(bits)) return bits;
+
+		bits = (BitSet)bits.clone();
+		map.put(key, bits);
+		ownedBits.add(bits);
+		return bits;
+	}
+
+
+	/**
+	 * Stores and returns new empty bits under the key.
+	 */
+	private BitSet newBits(Map<String, BitSet> map, String key)
+	{
+		BitSet bits = new BitSet();
+		map.put(key, bits);
+		if (ownedBits != null) ownedBits.add(bits);
+		return bits;
+	}
+
+
+	/**
+	 * Inserts a string into an already sorted list, keeping it sorted.
+	 */
+	private static void addSorted(List<String> list, String value)
+	{
+		int pos = Collections.binarySearch(list, value);
+		list.add(pos < 0 ? -pos - 1 : pos, value);
+	}
+
+
+	private void buildProjectIndex()
+	{
+		IntIntMap index = new IntIntMap(projectCount(), -1);
+		for (int n = 0; n < projectCount(); n++) index.putIfAbsent(projectId(n), n);
+		projectIndex = index;
+	}
+}
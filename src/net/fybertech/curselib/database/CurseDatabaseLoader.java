@@ -0,0 +1,247 @@
+package net.fybertech.curselib.database;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.gson.ExclusionStrategy;
+import com.google.gson.FieldAttributes;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonIOException;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * Streaming reader for Curse database JSON files.
+ *
+ * Rather than binding the entire file to a CurseDatabase in one go, the
+ * "data" array is walked one project at a time and each project is handed
+ * to a ProjectHandler as soon as it's read.  Only what the handler decides
+ * to keep stays in memory.
+ *
+ * Values repeated across many projects, such as category sections, category
+ * names and game versions, are also pooled as they're read so every project
+ * shares a single copy.  The pool lives as long as the loader, so databases
+ * loaded with the same loader share them with each other as well.
+ */
+public class CurseDatabaseLoader
+{
+	/**
+	 * Receives each project as it's read from the database file.
+	 */
+	public static interface ProjectHandler
+	{
+		public void handleProject(CurseProject project);
+	}
+
+
+	/** Size of the character buffer used when reading database files */
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+	/** Names of CurseProject fields that won't be read from the JSON */
+	private final Set<String> skippedFields = new HashSet<>();
+
+	/** Adapter used for each project, rebuilt when the skipped fields change */
+	private TypeAdapter<CurseProject> projectAdapter = null;
+
+	/** Whether repeated values are shared between projects */
+	private boolean pooling = true;
+
+	/** Canonical copies of pooled strings */
+	private final Map<String, String> stringPool = new HashMap<>();
+
+	/**
+	 * Canonical copies of pooled sections, keyed on all of their fields so a
+	 * section changed by a later database isn't replaced with an older copy
+	 */
+	private final Map<String, CategorySection> sectionPool = new HashMap<>();
+
+
+
+	/**
+	 * Excludes the named CurseProject field, such as "Attachments" or
+	 * "Summary", from loading.  Its value is skipped over in the stream
+	 * and the field is left null in every project.
+	 */
+	public CurseDatabaseLoader skipField(String fieldName)
+	{
+		skippedFields.add(fieldName);
+		projectAdapter = null;
+		return this;
+	}
+
+
+	/**
+	 * Enables or disables sharing repeated values between projects, which
+	 * is on by default.  With it enabled, projects with identical sections
+	 * share one CategorySection object, so changing it affects all of them.
+	 */
+	public CurseDatabaseLoader setPooling(boolean pooling)
+	{
+		this.pooling = pooling;
+		return this;
+	}
+
+
+	/**
+	 * Releases all pooled values.  Projects already loaded keep theirs.
+	 */
+	public void clearPool()
+	{
+		stringPool.clear();
+		sectionPool.clear();
+	}
+
+
+	/**
+	 * Returns the adapter used to read individual projects.
+	 */
+	private TypeAdapter<CurseProject> getProjectAdapter()
+	{
+		if (projectAdapter != null) return projectAdapter;
+
+		final Set<String> skipped = new HashSet<>(skippedFields);
+
+		GsonBuilder gsonBuilder = new GsonBuilder();
+		gsonBuilder.setExclusionStrategies(new ExclusionStrategy() {
+			@Override
+			public boolean shouldSkipField(FieldAttributes f) {
+				return f.getDeclaringClass() == CurseProject.class && skipped.contains(f.getName());
+			}
+
+			@Override
+			public boolean shouldSkipClass(Class<?> clazz) {
+				return false;
+			}
+		});
+		Gson gson = gsonBuilder.create();
+
+		projectAdapter = gson.getAdapter(CurseProject.class);
+		return projectAdapter;
+	}
+
+
+	/**
+	 * Reads the specified database file, passing each project to the handler
+	 * in file order.
+	 *
+	 * @return The timestamp of the database.
+	 */
+	public long load(File dbFile, ProjectHandler handler) throws JsonSyntaxException, JsonIOException, IOException
+	{
+		Reader reader = new BufferedReader(new InputStreamReader(new FileInputStream(dbFile), StandardCharsets.UTF_8), READ_BUFFER_SIZE);
+		try {
+			return load(reader, handler);
+		} finally {
+			reader.close();
+		}
+	}
+
+
+	/**
+	 * Reads a database from the specified reader, passing each project to the
+	 * handler in stream order.  The reader is not closed.
+	 *
+	 * @return The timestamp of the database.
+	 */
+	public long load(Reader reader, ProjectHandler handler) throws JsonSyntaxException, JsonIOException, IOException
+	{
+		TypeAdapter<CurseProject> adapter = getProjectAdapter();
+		long timestamp = 0;
+
+		JsonReader json = new JsonReader(reader);
+		try {
+			json.beginObject();
+			while (json.hasNext()) {
+				String name = json.nextName();
+
+				if (name.equals("timestamp") && json.peek() == JsonToken.NUMBER) {
+					timestamp = json.nextLong();
+				}
+				else if (name.equals("data") && json.peek() == JsonToken.BEGIN_ARRAY) {
+					json.beginArray();
+					while (json.hasNext()) {
+						CurseProject project = adapter.read(json);
+						if (project == null) continue;
+						if (pooling) pool(project);
+						handler.handleProject(project);
+					}
+					json.endArray();
+				}
+				else json.skipValue();
+			}
+			json.endObject();
+		}
+		catch (IllegalStateException e) {
+			throw new JsonSyntaxException(e);
+		}
+
+		return timestamp;
+	}
+
+
+	/**
+	 * Replaces the project's frequently repeated values with their pooled
+	 * copies.
+	 */
+	private void pool(CurseProject project)
+	{
+		CategorySection section = project.CategorySection;
+		if (section != null) {
+			String key = CurseProjectCodec.sectionKey(section);
+			CategorySection pooled = sectionPool.get(key);
+			if (pooled == null) {
+				section.Name = pool(section.Name);
+				section.Path = pool(section.Path);
+				section.InitialInclusionPattern = pool(section.InitialInclusionPattern);
+				section.ExtraIncludePattern = pool(section.ExtraIncludePattern);
+				sectionPool.put(key, section);
+			}
+			else project.CategorySection = pooled;
+		}
+
+		project.PrimaryCategoryName = pool(project.PrimaryCategoryName);
+		project.PrimaryCategoryAvatarUrl = pool(project.PrimaryCategoryAvatarUrl);
+
+		if (project.Categories != null) {
+			for (CurseCategory category : project.Categories) {
+				category.Name = pool(category.Name);
+				category.URL = pool(category.URL);
+			}
+		}
+
+		if (project.LatestFiles != null) {
+			for (CurseFile file : project.LatestFiles) {
+				if (file.GameVersion == null) continue;
+				for (int n = 0; n < file.GameVersion.length; n++) file.GameVersion[n] = pool(file.GameVersion[n]);
+			}
+		}
+
+		if (project.GameVersionLatestFiles != null) {
+			for (CurseFileStub stub : project.GameVersionLatestFiles) stub.GameVesion = pool(stub.GameVesion);
+		}
+	}
+
+
+	private String pool(String value)
+	{
+		if (value == null) return null;
+
+		String pooled = stringPool.get(value);
+		if (pooled != null) return pooled;
+
+		stringPool.put(value, value);
+		return value;
+	}
+}
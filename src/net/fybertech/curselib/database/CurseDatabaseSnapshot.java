@@ -0,0 +1,525 @@
+package net.fybertech.curselib.database;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+
+import net.fybertech.curselib.CurseLib;
+import net.fybertech.curselib.util.IntIntMap;
+
+/**
+ * Reads and writes a processed CurseDatabase as a compact binary file, so it
+ * can be opened again without parsing and processing the JSON databases.
+ *
+ * The snapshot holds a table of every distinct string, the scalar project
+ * fields stored column by column, the nested project arrays, and the
+ * section, version, category and file indexes.  It also records the size
+ * and modification time of each JSON file the database was built from, and
+ * is treated as stale as soon as any of them change.
+ *
+ * Snapshots are read into memory with positional reads and closed again
+ * before returning, rather than memory mapped, so a snapshot that was just
+ * read can be replaced right away.
+ */
+public class CurseDatabaseSnapshot
+{
+	/** "CLDB" */
+	private static final int MAGIC = 0x434C4442;
+
+	/** Bumped whenever the layout changes, which invalidates older snapshots */
+	public static final int FORMAT_VERSION = 1;
+
+	/** Bytes first read when only the header is needed, which is usually all of it */
+	private static final int HEADER_READ_SIZE = 4096;
+
+
+	/**
+	 * A JSON database file a snapshot was built from.
+	 */
+	public static class Source
+	{
+		public final String path;
+		public final long length;
+		public final long lastModified;
+
+		public Source(String path, long length, long lastModified)
+		{
+			this.path = path;
+			this.length = length;
+			this.lastModified = lastModified;
+		}
+
+		public Source(File file)
+		{
+			this(file.getAbsolutePath(), file.length(), file.lastModified());
+		}
+
+		/**
+		 * Returns true if the file still exists unchanged.
+		 */
+		public boolean isCurrent()
+		{
+			File file = new File(path);
+			return file.isFile() && file.length() == length && file.lastModified() == lastModified;
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			if (!(obj instanceof Source)) return false;
+			Source other = (Source)obj;
+			return path.equals(other.path) && length == other.length && lastModified == other.lastModified;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return path.hashCode() * 31 + (int)(lastModified ^ length);
+		}
+
+		@Override
+		public String toString()
+		{
+			return "Source [path=" + path + ", length=" + length + ", lastModified=" + lastModified + "]";
+		}
+	}
+
+
+
+	/**
+	 * Writes the database to the specified file, replacing it in a single
+	 * rename once complete.
+	 */
+	public static void write(CurseDatabase db, File file) throws IOException
+	{
+		File destPath = file.getAbsoluteFile().getParentFile();
+		if (!destPath.exists()) destPath.mkdirs();
+
+		File tempFile = File.createTempFile(file.getName(), ".tmp", destPath);
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), CurseLib.STREAM_BUFFER_SIZE));
+			try {
+				new Writer(db.getGeneration()).write(out);
+			} finally {
+				out.close();
+			}
+
+			CurseLib.replaceFile(tempFile, file);
+			tempFile = null;
+		}
+		finally {
+			if (tempFile != null) tempFile.delete();
+		}
+	}
+
+
+	/**
+	 * Reads the sources recorded in the snapshot without reading the rest of
+	 * it, or returns null if the file doesn't exist or isn't a snapshot of
+	 * the current format.
+	 *
+	 * @throws IOException If the file can't be read or is damaged.
+	 */
+	public static List<Source> readSources(File file) throws IOException
+	{
+		if (!file.isFile()) return null;
+
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			long size = channel.size();
+			for (long length = HEADER_READ_SIZE; ; length *= 2) {
+				Reader reader = new Reader(read(channel, Math.min(length, size)));
+				try {
+					return reader.readHeader() ? reader.sources : null;
+				}
+				catch (BufferUnderflowException e) {
+					// The header is longer than what was read
+					if (length >= size) throw new EOFException("Snapshot ended early: " + file);
+				}
+			}
+		}
+		catch (RuntimeException e) {
+			throw new IOException("Damaged snapshot: " + file, e);
+		}
+		finally {
+			channel.close();
+		}
+	}
+
+
+	/**
+	 * Returns true if the snapshot exists, is of the current format, and all
+	 * of its source files are unchanged.
+	 *
+	 * @throws IOException If the file can't be read or is damaged.
+	 */
+	public static boolean isCurrent(File file) throws IOException
+	{
+		List<Source> sources = readSources(file);
+		if (sources == null) return false;
+
+		for (Source source : sources) {
+			if (!source.isCurrent()) return false;
+		}
+		return true;
+	}
+
+
+	/**
+	 * Reads the snapshot and rebuilds the database it holds, or returns null
+	 * if the file doesn't exist or isn't a snapshot of the current format.
+	 * The sources aren't checked.
+	 *
+	 * @throws IOException If the file can't be read or is damaged.
+	 */
+	public static CurseDatabase read(File file) throws IOException
+	{
+		if (!file.isFile()) return null;
+
+		ByteBuffer buffer;
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			buffer = read(channel, channel.size());
+		} finally {
+			channel.close();
+		}
+
+		try {
+			Reader reader = new Reader(buffer);
+			if (!reader.readHeader()) return null;
+			return reader.readDatabase();
+		}
+		catch (RuntimeException e) {
+			throw new IOException("Damaged snapshot: " + file, e);
+		}
+	}
+
+
+	/**
+	 * Reads the first length bytes of the channel into a heap buffer.
+	 */
+	private static ByteBuffer read(FileChannel channel, long length) throws IOException
+	{
+		if (length > Integer.MAX_VALUE) throw new IOException("Snapshot too large");
+
+		ByteBuffer buffer = ByteBuffer.allocate((int)length);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, buffer.position()) == -1) throw new EOFException("Snapshot ended early");
+		}
+		buffer.clear();
+		return buffer;
+	}
+
+
+
+	/**
+	 * Serializes a database, collecting its strings and category sections
+	 * into shared tables first.
+	 */
+	private static class Writer extends CurseProjectCodec
+	{
+		private final CurseDatabaseGeneration db;
+
+
+		Writer(CurseDatabaseGeneration db)
+		{
+			this.db = db;
+		}
+
+
+		void write(DataOutputStream out) throws IOException
+		{
+			CurseProject[] data = db.getProjectArray();
+
+			// Nested arrays go into their own block, which also fills the string table
+			ByteArrayOutputStream nestedBytes = new ByteArrayOutputStream();
+			DataOutputStream nested = new DataOutputStream(nestedBytes);
+			int[] sectionRefs = new int[data.length];
+			for (int n = 0; n < data.length; n++) {
+				writeNested(nested, data[n]);
+				sectionRefs[n] = section(data[n].CategorySection);
+			}
+
+			for (CurseProject p : data) {
+				string(p.Name); string(p.WebSiteURL); string(p.Summary); string(p.PrimaryAuthorName); string(p.ExternalUrl);
+				string(p.DonationUrl); string(p.PrimaryCategoryName); string(p.PrimaryCategoryAvatarUrl); string(p.AvatarUrl);
+			}
+
+			for (CategorySection section : sections) {
+				string(section.Name); string(section.Path); string(section.InitialInclusionPattern); string(section.ExtraIncludePattern);
+			}
+
+			boolean processed = db.isProcessed();
+			if (processed) {
+				for (String s : db.sections) string(s);
+				for (String s : db.versions) string(s);
+				for (String s : db.categories) string(s);
+				for (String s : db.bitsByCategory.keySet()) string(s);
+			}
+
+			// Header
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT_VERSION);
+			out.writeLong(db.timestamp);
+			out.writeInt(db.sources.size());
+			for (Source source : db.sources) {
+				writeString(out, source.path);
+				out.writeLong(source.length);
+				out.writeLong(source.lastModified);
+			}
+
+			// String table
+			out.writeInt(strings.size());
+			for (String s : strings) writeString(out, s);
+
+			// Category sections
+			out.writeInt(sections.size());
+			for (CategorySection section : sections) {
+				out.writeInt(section.ID);
+				out.writeInt(section.GameID);
+				out.writeInt(string(section.Name));
+				out.writeInt(section.PackageType);
+				out.writeInt(string(section.Path));
+				out.writeInt(string(section.InitialInclusionPattern));
+				out.writeInt(string(section.ExtraIncludePattern));
+			}
+
+			// Project columns
+			out.writeInt(data.length);
+			for (CurseProject p : data) out.writeInt(p.Id);
+			for (CurseProject p : data) out.writeInt(p.GameId);
+			for (CurseProject p : data) out.writeInt(p.DefaultFileId);
+			for (CurseProject p : data) out.writeInt(p.CommentCount);
+			for (CurseProject p : data) out.writeDouble(p.DownloadCount);
+			for (CurseProject p : data) out.writeInt(p.Rating);
+			for (CurseProject p : data) out.writeInt(p.InstallCount);
+			for (CurseProject p : data) out.writeInt(p.IconId);
+			for (CurseProject p : data) out.writeInt(p.Status);
+			for (CurseProject p : data) out.writeInt(p.Stage);
+			for (CurseProject p : data) out.writeInt(p.PrimaryCategoryId);
+			for (CurseProject p : data) out.writeInt(p.Likes);
+			for (CurseProject p : data) out.writeInt(p.PackageType);
+			for (CurseProject p : data) out.writeInt(p.IsFeatured);
+			for (CurseProject p : data) out.writeDouble(p.PopularityScore);
+			for (CurseProject p : data) out.writeInt(string(p.Name));
+			for (CurseProject p : data) out.writeInt(string(p.WebSiteURL));
+			for (CurseProject p : data) out.writeInt(string(p.Summary));
+			for (CurseProject p : data) out.writeInt(string(p.PrimaryAuthorName));
+			for (CurseProject p : data) out.writeInt(string(p.ExternalUrl));
+			for (CurseProject p : data) out.writeInt(string(p.DonationUrl));
+			for (CurseProject p : data) out.writeInt(string(p.PrimaryCategoryName));
+			for (CurseProject p : data) out.writeInt(string(p.PrimaryCategoryAvatarUrl));
+			for (CurseProject p : data) out.writeInt(string(p.AvatarUrl));
+			for (int ref : sectionRefs) out.writeInt(ref);
+
+			out.writeInt(nested.size());
+			nestedBytes.writeTo(out);
+
+			// Indexes
+			out.writeBoolean(processed);
+			if (!processed) return;
+
+			writeStringList(out, db.sections);
+			writeStringList(out, db.versions);
+			writeStringList(out, db.categories);
+			writeBits(out, db.bitsBySection);
+			writeBits(out, db.bitsByVersion);
+			writeBits(out, db.bitsByCategory);
+
+			int[] fileIds = db.files.keys();
+			out.writeInt(fileIds.length);
+			for (int fileId : fileIds) {
+				out.writeInt(fileId);
+				out.writeInt(db.files.get(fileId));
+			}
+		}
+
+
+		private void writeStringList(DataOutputStream out, List<String> list) throws IOException
+		{
+			out.writeInt(list.size());
+			for (String s : list) out.writeInt(string(s));
+		}
+
+
+		private void writeBits(DataOutputStream out, Map<String, BitSet> map) throws IOException
+		{
+			out.writeInt(map.size());
+			for (Map.Entry<String, BitSet> entry : map.entrySet()) {
+				out.writeInt(string(entry.getKey()));
+				long[] words = entry.getValue().toLongArray();
+				out.writeInt(words.length);
+				for (long word : words) out.writeLong(word);
+			}
+		}
+
+
+		private static void writeString(DataOutputStream out, String s) throws IOException
+		{
+			byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+
+
+	/**
+	 * Rebuilds a database from a snapshot read into a buffer.
+	 */
+	private static class Reader
+	{
+		private final ByteBuffer buffer;
+
+		long timestamp;
+		List<Source> sources;
+
+
+		Reader(ByteBuffer buffer)
+		{
+			this.buffer = buffer;
+		}
+
+
+		boolean readHeader()
+		{
+			if (buffer.remaining() < 8 || buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) return false;
+
+			timestamp = buffer.getLong();
+
+			int sourceCount = buffer.getInt();
+			sources = new ArrayList<>(sourceCount);
+			for (int n = 0; n < sourceCount; n++) {
+				String path = readString();
+				long length = buffer.getLong();
+				long lastModified = buffer.getLong();
+				sources.add(new Source(path, length, lastModified));
+			}
+
+			return true;
+		}
+
+
+		CurseDatabase readDatabase()
+		{
+			String[] strings = new String[buffer.getInt()];
+			for (int n = 0; n < strings.length; n++) strings[n] = readString();
+
+			CategorySection[] sections = new CategorySection[buffer.getInt()];
+			for (int n = 0; n < sections.length; n++) {
+				CategorySection section = new CategorySection();
+				section.ID = buffer.getInt();
+				section.GameID = buffer.getInt();
+				section.Name = string(strings);
+				section.PackageType = buffer.getInt();
+				section.Path = string(strings);
+				section.InitialInclusionPattern = string(strings);
+				section.ExtraIncludePattern = string(strings);
+				sections[n] = section;
+			}
+
+			int count = buffer.getInt();
+			CurseProject[] data = new CurseProject[count];
+			for (int n = 0; n < count; n++) data[n] = new CurseProject();
+
+			for (CurseProject p : data) p.Id = buffer.getInt();
+			for (CurseProject p : data) p.GameId = buffer.getInt();
+			for (CurseProject p : data) p.DefaultFileId = buffer.getInt();
+			for (CurseProject p : data) p.CommentCount = buffer.getInt();
+			for (CurseProject p : data) p.DownloadCount = buffer.getDouble();
+			for (CurseProject p : data) p.Rating = buffer.getInt();
+			for (CurseProject p : data) p.InstallCount = buffer.getInt();
+			for (CurseProject p : data) p.IconId = buffer.getInt();
+			for (CurseProject p : data) p.Status = buffer.getInt();
+			for (CurseProject p : data) p.Stage = buffer.getInt();
+			for (CurseProject p : data) p.PrimaryCategoryId = buffer.getInt();
+			for (CurseProject p : data) p.Likes = buffer.getInt();
+			for (CurseProject p : data) p.PackageType = buffer.getInt();
+			for (CurseProject p : data) p.IsFeatured = buffer.getInt();
+			for (CurseProject p : data) p.PopularityScore = buffer.getDouble();
+			for (CurseProject p : data) p.Name = string(strings);
+			for (CurseProject p : data) p.WebSiteURL = string(strings);
+			for (CurseProject p : data) p.Summary = string(strings);
+			for (CurseProject p : data) p.PrimaryAuthorName = string(strings);
+			for (CurseProject p : data) p.ExternalUrl = string(strings);
+			for (CurseProject p : data) p.DonationUrl = string(strings);
+			for (CurseProject p : data) p.PrimaryCategoryName = string(strings);
+			for (CurseProject p : data) p.PrimaryCategoryAvatarUrl = string(strings);
+			for (CurseProject p : data) p.AvatarUrl = string(strings);
+			for (CurseProject p : data) {
+				int ref = buffer.getInt();
+				p.CategorySection = ref < 0 ? null : sections[ref];
+			}
+
+			buffer.getInt();
+			for (CurseProject p : data) CurseProjectCodec.readNested(buffer, p, strings);
+
+			CurseDatabaseGeneration db = new CurseDatabaseGeneration(timestamp, data, sources);
+			if (buffer.get() == 0) return new CurseDatabase(db);
+
+			db.sections.addAll(readStringList(strings));
+			db.versions.addAll(readStringList(strings));
+			db.categories.addAll(readStringList(strings));
+			db.categorySet.addAll(db.categories);
+			readBits(db.bitsBySection, strings);
+			readBits(db.bitsByVersion, strings);
+			readBits(db.bitsByCategory, strings);
+
+			int fileCount = buffer.getInt();
+			IntIntMap files = new IntIntMap(fileCount, -1);
+			for (int n = 0; n < fileCount; n++) files.put(buffer.getInt(), buffer.getInt());
+			db.files = files;
+
+			db.restoreProcessedData();
+			return new CurseDatabase(db);
+		}
+
+
+		private List<String> readStringList(String[] strings)
+		{
+			int count = buffer.getInt();
+			List<String> list = new ArrayList<>(count);
+			for (int n = 0; n < count; n++) list.add(string(strings));
+			return list;
+		}
+
+
+		private void readBits(Map<String, BitSet> map, String[] strings)
+		{
+			int count = buffer.getInt();
+			for (int n = 0; n < count; n++) {
+				String key = string(strings);
+				long[] words = new long[buffer.getInt()];
+				for (int w = 0; w < words.length; w++) words[w] = buffer.getLong();
+				map.put(key, BitSet.valueOf(words));
+			}
+		}
+
+
+		private String string(String[] strings)
+		{
+			return CurseProjectCodec.string(buffer, strings);
+		}
+
+
+		private String readString()
+		{
+			byte[] bytes = new byte[buffer.getInt()];
+			buffer.get(bytes);
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+	}
+}
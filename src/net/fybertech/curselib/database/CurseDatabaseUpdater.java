@@ -0,0 +1,373 @@
+package net.fybertech.curselib.database;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import net.fybertech.curselib.CurseLib;
+import net.fybertech.curselib.CurseLib.DatabaseVersion;
+import net.fybertech.curselib.CurseLib.EnumDatabaseType;
+
+/**
+ * Keeps a merged CurseDatabase up to date in the background.
+ *
+ * Each check asks the feed server for the latest version of every database
+ * type at once and downloads, in parallel, only the feeds whose version changed.
+ * New delta feeds are merged into the existing database, oldest first, and
+ * only the projects they change are processed again.  The database is only
+ * rebuilt when COMPLETE itself changes, from COMPLETE and every delta feed,
+ * and the result is published into the same database object.  Either way
+ * readers switch to the new data in one step, so getDatabase() always
+ * returns a complete database, and it's the same object for the life of the
+ * updater.
+ *
+ * The versions of the downloaded feeds are remembered in a file next to
+ * them, so unchanged feeds aren't downloaded again after a restart, and the
+ * processed COMPLETE database is kept as a snapshot for a quick first load.
+ */
+public class CurseDatabaseUpdater
+{
+	/**
+	 * Notified whenever the database changes.
+	 */
+	public static interface UpdateListener
+	{
+		/**
+		 * Called on the updater's thread with the database and the feeds
+		 * just downloaded into it.
+		 */
+		public void databaseUpdated(CurseDatabase database, Set<EnumDatabaseType> updatedTypes);
+	}
+
+
+	/** File in the database directory holding the downloaded feed versions */
+	private static final String VERSIONS_FILENAME = "versions.properties";
+
+	/** File in the database directory holding the processed COMPLETE database */
+	private static final String SNAPSHOT_FILENAME = "complete.snapshot";
+
+
+	private final String feedUrl;
+	private final File databaseDir;
+
+	/** The database kept up to date, or null until the first load */
+	private volatile CurseDatabase database = null;
+
+	/** Version of each feed downloaded to the database directory */
+	private final Map<EnumDatabaseType, Long> versions = new EnumMap<>(EnumDatabaseType.class);
+
+	private final List<UpdateListener> listeners = new CopyOnWriteArrayList<>();
+
+	/** Held for the duration of each check, so checks never overlap */
+	private final Object updateLock = new Object();
+
+	private ScheduledExecutorService scheduler = null;
+
+
+
+	/**
+	 * Creates an updater for the Curse feeds and the default database
+	 * location.
+	 */
+	public CurseDatabaseUpdater()
+	{
+		this(CurseLib.FEED_URL, new File(CurseLib.DATABASE_LOCATION));
+	}
+
+
+	/**
+	 * Creates an updater for the feeds at the specified base URL, keeping the
+	 * databases in the specified directory.
+	 */
+	public CurseDatabaseUpdater(String feedUrl, File databaseDir)
+	{
+		this.feedUrl = feedUrl;
+		this.databaseDir = databaseDir;
+		loadVersions();
+	}
+
+
+	/**
+	 * Returns the database kept up to date, or null if none has been loaded
+	 * yet.
+	 */
+	public CurseDatabase getDatabase()
+	{
+		return database;
+	}
+
+
+	public void addListener(UpdateListener listener)
+	{
+		listeners.add(listener);
+	}
+
+
+	public void removeListener(UpdateListener listener)
+	{
+		listeners.remove(listener);
+	}
+
+
+	/**
+	 * Starts checking for updates on a background thread, right away and then
+	 * the specified interval after each check finishes.  Errors are printed
+	 * and the previous database is kept.
+	 */
+	public synchronized void start(long interval, TimeUnit unit)
+	{
+		if (scheduler != null) return;
+
+		scheduler = Executors.newSingleThreadScheduledExecutor(new UpdaterThreadFactory("CurseDatabaseUpdater"));
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					update();
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		}, 0, interval, unit);
+	}
+
+
+	/**
+	 * Stops checking for updates.  A check already running is interrupted.
+	 */
+	public synchronized void stop()
+	{
+		if (scheduler == null) return;
+
+		scheduler.shutdownNow();
+		scheduler = null;
+	}
+
+
+	/**
+	 * Checks for new feed versions right away, downloading and applying any
+	 * that changed, or loading the database if it hasn't been yet.
+	 *
+	 * @return True if the database changed.
+	 */
+	public boolean update() throws IOException, InterruptedException
+	{
+		synchronized (updateLock)
+		{
+			Map<EnumDatabaseType, Long> latest = new EnumMap<>(EnumDatabaseType.class);
+			for (DatabaseVersion version : CurseLib.getLatestDatabaseVersions(feedUrl).values()) {
+				latest.put(version.type, version.isAvailable() ? version.version : 0);
+			}
+
+			Set<EnumDatabaseType> changed = EnumSet.noneOf(EnumDatabaseType.class);
+			for (EnumDatabaseType type : EnumDatabaseType.values()) {
+				long version = latest.get(type);
+				Long known = versions.get(type);
+				if (version != 0 && (known == null || known != version || !type.getFile(databaseDir).exists())) changed.add(type);
+			}
+
+			Set<EnumDatabaseType> downloaded = download(changed, latest);
+			CurseDatabase db = database;
+
+			if (db == null || downloaded.contains(EnumDatabaseType.COMPLETE)) {
+				CurseDatabase rebuilt = openDatabase();
+				if (db == null) database = db = rebuilt;
+				else db.replaceWith(rebuilt);
+			}
+			else if (!downloaded.isEmpty()) {
+				mergeDeltas(db, downloaded);
+			}
+			else return false;
+
+			for (UpdateListener listener : listeners) listener.databaseUpdated(db, downloaded);
+			return true;
+		}
+	}
+
+
+	/**
+	 * Downloads the specified feeds at once, returning the ones that
+	 * succeeded.
+	 */
+	private Set<EnumDatabaseType> download(Set<EnumDatabaseType> types, final Map<EnumDatabaseType, Long> latest) throws InterruptedException
+	{
+		Set<EnumDatabaseType> downloaded = EnumSet.noneOf(EnumDatabaseType.class);
+		if (types.isEmpty()) return downloaded;
+
+		if (!databaseDir.exists()) databaseDir.mkdirs();
+
+		ExecutorService pool = Executors.newFixedThreadPool(types.size(), new UpdaterThreadFactory("CurseDatabaseUpdater download"));
+		try {
+			Map<EnumDatabaseType, Future<Void>> results = new EnumMap<>(EnumDatabaseType.class);
+			for (final EnumDatabaseType type : types) {
+				results.put(type, pool.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws IOException {
+						CurseLib.fetchDatabase(feedUrl, latest.get(type), type, type.getFile(databaseDir));
+						return null;
+					}
+				}));
+			}
+
+			for (Map.Entry<EnumDatabaseType, Future<Void>> entry : results.entrySet()) {
+				try {
+					entry.getValue().get();
+				} catch (ExecutionException e) {
+					e.getCause().printStackTrace();
+					continue;
+				}
+
+				downloaded.add(entry.getKey());
+				versions.put(entry.getKey(), latest.get(entry.getKey()));
+			}
+		}
+		finally {
+			pool.shutdownNow();
+		}
+
+		if (!downloaded.isEmpty()) saveVersions();
+		return downloaded;
+	}
+
+
+	/**
+	 * Opens COMPLETE, from its snapshot when that's up to date, and merges
+	 * every delta feed on disk into it.
+	 */
+	private CurseDatabase openDatabase() throws IOException
+	{
+		File complete = EnumDatabaseType.COMPLETE.getFile(databaseDir);
+		if (!complete.exists()) throw new IOException("No COMPLETE database in " + databaseDir);
+
+		CurseDatabase db = CurseDatabase.openMerged(new File(databaseDir, SNAPSHOT_FILENAME), complete);
+		mergeDeltas(db, EnumSet.complementOf(EnumSet.of(EnumDatabaseType.COMPLETE)));
+		return db;
+	}
+
+
+	/**
+	 * Loads the specified delta feeds that are on disk and merges them into
+	 * the database oldest first, processing only the projects they change.
+	 * All of them are published together, and feeds no newer than the
+	 * database are skipped.
+	 */
+	private void mergeDeltas(CurseDatabase db, Set<EnumDatabaseType> types) throws IOException
+	{
+		List<EnumDatabaseType> deltas = new ArrayList<>();
+		for (EnumDatabaseType type : types) {
+			if (type != EnumDatabaseType.COMPLETE && type.getFile(databaseDir).exists()) deltas.add(type);
+		}
+		Collections.sort(deltas, new Comparator<EnumDatabaseType>() {
+			@Override
+			public int compare(EnumDatabaseType o1, EnumDatabaseType o2) {
+				return Long.compare(getVersion(o1), getVersion(o2));
+			}
+		});
+
+		CurseDatabaseLoader loader = new CurseDatabaseLoader();
+		List<CurseDatabase> loaded = new ArrayList<>();
+		for (EnumDatabaseType type : deltas) loaded.add(CurseDatabase.Open(type.getFile(databaseDir), false, loader));
+
+		db.mergeDatabases(loaded);
+	}
+
+
+	/**
+	 * Returns the known version of a downloaded feed, or 0.
+	 */
+	private long getVersion(EnumDatabaseType type)
+	{
+		Long version = versions.get(type);
+		return version == null ? 0 : version;
+	}
+
+
+	private void loadVersions()
+	{
+		File file = new File(databaseDir, VERSIONS_FILENAME);
+		if (!file.exists()) return;
+
+		Properties properties = new Properties();
+		InputStream in = null;
+		try {
+			in = new FileInputStream(file);
+			properties.load(in);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return;
+		} finally {
+			CurseLib.closeQuietly(in);
+		}
+
+		for (EnumDatabaseType type : EnumDatabaseType.values()) {
+			try {
+				String value = properties.getProperty(type.getUrlSlug());
+				if (value != null) versions.put(type, Long.parseLong(value));
+			} catch (NumberFormatException e) {}
+		}
+	}
+
+
+	private void saveVersions()
+	{
+		Properties properties = new Properties();
+		for (Map.Entry<EnumDatabaseType, Long> entry : versions.entrySet()) {
+			properties.setProperty(entry.getKey().getUrlSlug(), Long.toString(entry.getValue()));
+		}
+
+		OutputStream out = null;
+		try {
+			out = new FileOutputStream(new File(databaseDir, VERSIONS_FILENAME));
+			properties.store(out, "Downloaded Curse database versions");
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			CurseLib.closeQuietly(out);
+		}
+	}
+
+
+
+	/**
+	 * Creates named daemon threads, so a running updater doesn't keep the
+	 * application alive.
+	 */
+	private static class UpdaterThreadFactory implements ThreadFactory
+	{
+		private final String name;
+
+		UpdaterThreadFactory(String name)
+		{
+			this.name = name;
+		}
+
+		@Override
+		public Thread newThread(Runnable r)
+		{
+			Thread thread = new Thread(r, name);
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -0,0 +1,727 @@
+package net.fybertech.curselib.database;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.fybertech.curselib.CurseLib;
+import net.fybertech.curselib.util.MurmurHash2;
+
+/**
+ * Index of the archives downloaded to the file cache, by file ID.
+ *
+ * Each entry records where a file was saved along with its size and Curse
+ * fingerprint, so finding a cached file is a map lookup and a length check
+ * rather than a directory listing, and a damaged file can be told apart
+ * from a good one.
+ *
+ * The index is kept in a single journal file in the cache directory.  Each
+ * change is appended to it as it's made and the whole journal is read back
+ * when the cache is opened, then rewritten once superseded records outnumber
+ * the live ones.
+ *
+ * With a size limit set, the least recently used files are deleted on a
+ * background thread whenever the indexed files grow past it.  Use times are
+ * kept in the index itself rather than relying on file system access times,
+ * and files that are pinned, such as those of a manifest being assembled,
+ * are never deleted.
+ */
+public class CurseFileCache
+{
+	/**
+	 * An indexed file.
+	 */
+	public static class Entry
+	{
+		public final int projectID;
+		public final int fileID;
+		public final File file;
+		public final long size;
+
+		/** Curse fingerprint of the file, as computed by MurmurHash2.fingerprint */
+		public final long fingerprint;
+
+		/** When the file was last looked up, in milliseconds */
+		private volatile long lastAccess;
+
+		/** Last use time written to the journal */
+		private long savedAccess;
+
+		public Entry(int projectID, int fileID, File file, long size, long fingerprint)
+		{
+			this(projectID, fileID, file, size, fingerprint, System.currentTimeMillis());
+		}
+
+		public Entry(int projectID, int fileID, File file, long size, long fingerprint, long lastAccess)
+		{
+			this.projectID = projectID;
+			this.fileID = fileID;
+			this.file = file;
+			this.size = size;
+			this.fingerprint = fingerprint;
+			this.lastAccess = lastAccess;
+			this.savedAccess = lastAccess;
+		}
+
+		public long getLastAccess()
+		{
+			return lastAccess;
+		}
+
+		@Override
+		public String toString()
+		{
+			return "Entry [fileID=" + fileID + ", file=" + file + ", size=" + size + ", fingerprint=" + fingerprint + "]";
+		}
+	}
+
+
+	/**
+	 * Keeps files from being evicted until closed.
+	 */
+	public class Pin implements Closeable
+	{
+		private final int[] fileIDs;
+		private boolean closed = false;
+
+		private Pin(int[] fileIDs)
+		{
+			this.fileIDs = fileIDs.clone();
+		}
+
+		@Override
+		public void close()
+		{
+			synchronized (pins) {
+				if (closed) return;
+				closed = true;
+
+				for (int fileID : fileIDs) {
+					Integer count = pins.get(fileID);
+					if (count == null) continue;
+					if (count <= 1) pins.remove(fileID);
+					else pins.put(fileID, count - 1);
+				}
+			}
+		}
+
+		public boolean isClosed()
+		{
+			synchronized (pins) {
+				return closed;
+			}
+		}
+	}
+
+
+	/** File in the cache directory holding the index */
+	private static final String INDEX_FILENAME = "index.dat";
+
+	/** "CFCI" */
+	private static final int MAGIC = 0x43464349;
+	private static final int FORMAT_VERSION = 2;
+
+	private static final byte RECORD_PUT = 1;
+	private static final byte RECORD_REMOVE = 2;
+	private static final byte RECORD_ACCESS = 3;
+
+	/** How stale a use time in the journal can get before a lookup records it */
+	private static final long ACCESS_SAVE_INTERVAL = 60 * 60 * 1000;
+
+	private static volatile CurseFileCache defaultCache = null;
+
+	private final File directory;
+	private final File indexFile;
+	private final ConcurrentHashMap<Integer, Entry> entries = new ConcurrentHashMap<>();
+
+	/** Records in the journal, live or not */
+	private int journalRecords = 0;
+
+	/** Total size of the indexed files */
+	private final AtomicLong totalSize = new AtomicLong();
+
+	/** Size the indexed files are kept under, or 0 for no limit */
+	private volatile long maxSize = 0;
+
+	/** Pin counts by file ID */
+	private final Map<Integer, Integer> pins = new HashMap<>();
+
+	private ExecutorService evictor = null;
+	private final AtomicBoolean evictionQueued = new AtomicBoolean();
+
+	/** Downloads in progress by project and file ID, which later requests wait on */
+	private final ConcurrentHashMap<Long, CompletableFuture<File>> downloads = new ConcurrentHashMap<>();
+
+
+
+	/**
+	 * Returns the cache for CurseLib.FILECACHE_LOCATION, opening it on first
+	 * use.
+	 */
+	public static CurseFileCache getDefault()
+	{
+		CurseFileCache cache = defaultCache;
+		if (cache != null) return cache;
+
+		synchronized (CurseFileCache.class) {
+			if (defaultCache == null) defaultCache = new CurseFileCache(new File(CurseLib.FILECACHE_LOCATION));
+			return defaultCache;
+		}
+	}
+
+
+	/**
+	 * Opens the cache in the specified directory, reading its index if one
+	 * exists.
+	 */
+	public CurseFileCache(File directory)
+	{
+		this.directory = directory;
+		this.indexFile = new File(directory, INDEX_FILENAME);
+		load();
+	}
+
+
+	public File getDirectory()
+	{
+		return directory;
+	}
+
+
+	/**
+	 * Sets the total size in bytes the indexed files are kept under, 0
+	 * meaning no limit, and starts evicting files if they're over it.
+	 */
+	public CurseFileCache setMaxSize(long maxSize)
+	{
+		this.maxSize = maxSize;
+		queueEviction();
+		return this;
+	}
+
+
+	public long getMaxSize()
+	{
+		return maxSize;
+	}
+
+
+	/**
+	 * Returns the total size of the indexed files.
+	 */
+	public long getTotalSize()
+	{
+		return totalSize.get();
+	}
+
+
+	/**
+	 * Returns the directory a file is downloaded to.
+	 */
+	public File getFileDirectory(int projectID, int fileID)
+	{
+		return new File(directory, projectID + File.separator + fileID);
+	}
+
+
+	/**
+	 * Returns the entry for a file ID, or null if it isn't indexed.
+	 */
+	public Entry getEntry(int fileID)
+	{
+		return entries.get(fileID);
+	}
+
+
+	/**
+	 * Returns the cached file for a file ID, or null if it isn't indexed or
+	 * no longer has the size it was indexed with, in which case its entry is
+	 * removed.  Counts as a use of the file.
+	 */
+	public File get(int fileID)
+	{
+		Entry entry = entries.get(fileID);
+		if (entry == null) return null;
+
+		if (entry.file.length() != entry.size) {
+			remove(fileID);
+			return null;
+		}
+
+		long now = System.currentTimeMillis();
+		entry.lastAccess = now;
+		if (now - entry.savedAccess > ACCESS_SAVE_INTERVAL) saveAccess(entry);
+
+		return entry.file;
+	}
+
+
+	/**
+	 * Returns the cached file for a file ID, or runs the loader to download
+	 * it.  Only one loader runs for a file at a time; other threads asking
+	 * for the same file meanwhile wait for it and share its result or error,
+	 * while requests for other files carry on.  If the loader fails because
+	 * its thread was interrupted, such as by a cancelled manifest download,
+	 * the waiting threads start the download again instead.
+	 *
+	 * The loader runs on the calling thread and is expected to index the
+	 * file itself.
+	 */
+	public File getOrDownload(int projectID, int fileID, Callable<File> loader) throws IOException
+	{
+		Long key = downloadKey(projectID, fileID);
+		CompletableFuture<File> download;
+
+		while (true) {
+			File file = get(fileID);
+			if (file != null) return file;
+
+			download = new CompletableFuture<>();
+			CompletableFuture<File> running;
+			// Registered under the lock eviction holds, so it never deletes a file being downloaded
+			synchronized (this) {
+				running = downloads.putIfAbsent(key, download);
+			}
+			if (running == null) break;
+
+			try {
+				return await(running);
+			}
+			catch (CancellationException e) {
+				// Its thread was interrupted, so try again rather than sharing that
+			}
+		}
+
+		try {
+			// Another thread may have finished it since the first lookup
+			File file = get(fileID);
+			if (file == null) file = loader.call();
+			download.complete(file);
+			return file;
+		}
+		catch (Exception e) {
+			if (Thread.currentThread().isInterrupted() || e instanceof InterruptedException || e instanceof InterruptedIOException) {
+				downloads.remove(key, download);
+				download.cancel(false);
+			}
+			else download.completeExceptionally(e);
+			if (e instanceof IOException) throw (IOException)e;
+			if (e instanceof RuntimeException) throw (RuntimeException)e;
+			throw new IOException(e);
+		}
+		finally {
+			downloads.remove(key, download);
+		}
+	}
+
+
+	/**
+	 * Returns the key of a file's download in the downloads map.
+	 */
+	private static long downloadKey(int projectID, int fileID)
+	{
+		return ((long)projectID << 32) | (fileID & 0xFFFFFFFFL);
+	}
+
+
+	/**
+	 * Waits for another thread's download, rethrowing its error.
+	 */
+	private static File await(CompletableFuture<File> download) throws IOException
+	{
+		try {
+			return download.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for download");
+		}
+		catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) throw (IOException)cause;
+			if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+			throw new IOException(cause);
+		}
+	}
+
+
+	/**
+	 * Indexes a file, computing its size and fingerprint.
+	 *
+	 * @throws FileNotFoundException If the file was deleted, such as by
+	 * eviction, before it could be indexed.
+	 */
+	public Entry put(int projectID, int fileID, File file) throws IOException
+	{
+		Entry entry = new Entry(projectID, fileID, file, file.length(), MurmurHash2.fingerprint(file));
+
+		// Eviction deletes files while holding the lock, so this can't miss one
+		synchronized (this) {
+			if (!file.isFile() || file.length() != entry.size) throw new FileNotFoundException("File changed while indexing: " + file);
+			return put(entry);
+		}
+	}
+
+
+	/**
+	 * Indexes a file with a known size and fingerprint.
+	 */
+	public Entry put(Entry entry)
+	{
+		synchronized (this) {
+			Entry previous = entries.put(entry.fileID, entry);
+			totalSize.addAndGet(entry.size - (previous != null ? previous.size : 0));
+			append(entry, RECORD_PUT);
+		}
+
+		queueEviction();
+		return entry;
+	}
+
+
+	/**
+	 * Removes a file from the index, leaving the file itself.
+	 */
+	public synchronized Entry remove(int fileID)
+	{
+		Entry entry = entries.remove(fileID);
+		if (entry != null) {
+			totalSize.addAndGet(-entry.size);
+			append(entry, RECORD_REMOVE);
+		}
+		return entry;
+	}
+
+
+	/**
+	 * Returns true if the indexed file still has the fingerprint it was
+	 * indexed with, and the specified one unless that's 0.  This reads the
+	 * whole file.
+	 */
+	public boolean verify(int fileID, long expectedFingerprint)
+	{
+		Entry entry = entries.get(fileID);
+		if (entry == null) return false;
+		if (expectedFingerprint != 0 && entry.fingerprint != expectedFingerprint) return false;
+
+		try {
+			return entry.file.length() == entry.size && MurmurHash2.fingerprint(entry.file) == entry.fingerprint;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+
+	/**
+	 * Returns all indexed entries.
+	 */
+	public List<Entry> getEntries()
+	{
+		return new ArrayList<>(entries.values());
+	}
+
+
+	public int size()
+	{
+		return entries.size();
+	}
+
+
+	/**
+	 * Keeps the specified files from being evicted until the returned pin is
+	 * closed.  Files may be pinned before they're downloaded, and pins of the
+	 * same file add up.
+	 */
+	public Pin pin(int... fileIDs)
+	{
+		synchronized (pins) {
+			for (int fileID : fileIDs) {
+				Integer count = pins.get(fileID);
+				pins.put(fileID, count == null ? 1 : count + 1);
+			}
+		}
+		return new Pin(fileIDs);
+	}
+
+
+	public boolean isPinned(int fileID)
+	{
+		synchronized (pins) {
+			return pins.containsKey(fileID);
+		}
+	}
+
+
+	/**
+	 * Deletes the least recently used files that aren't pinned or being
+	 * downloaded until the indexed files fit the size limit.  Normally run in
+	 * the background after files are added, but can be called directly.
+	 *
+	 * @return The number of bytes freed.
+	 */
+	public long evict()
+	{
+		long limit = maxSize;
+		if (limit <= 0 || totalSize.get() <= limit) return 0;
+
+		List<Entry> candidates = new ArrayList<>(entries.values());
+		Collections.sort(candidates, new Comparator<Entry>() {
+			@Override
+			public int compare(Entry o1, Entry o2) {
+				return Long.compare(o1.lastAccess, o2.lastAccess);
+			}
+		});
+
+		long freed = 0;
+		for (Entry entry : candidates) {
+			if (totalSize.get() <= limit) break;
+
+			synchronized (pins) {
+				if (pins.containsKey(entry.fileID)) continue;
+
+				// Only evict the entry if it wasn't replaced in the meantime, and
+				// delete the file before anything can index it again
+				synchronized (this) {
+					if (entries.get(entry.fileID) != entry || downloads.containsKey(downloadKey(entry.projectID, entry.fileID))) continue;
+					remove(entry.fileID);
+
+					entry.file.delete();
+					File fileDir = entry.file.getParentFile();
+					if (fileDir != null && fileDir.delete()) fileDir.getParentFile().delete();
+				}
+			}
+
+			freed += entry.size;
+		}
+
+		return freed;
+	}
+
+
+	/**
+	 * Runs evict on the cache's background thread if the files are over the
+	 * limit and it isn't already queued.
+	 */
+	private void queueEviction()
+	{
+		if (maxSize <= 0 || totalSize.get() <= maxSize) return;
+		if (!evictionQueued.compareAndSet(false, true)) return;
+
+		synchronized (this) {
+			if (evictor == null) {
+				evictor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "CurseFileCache eviction");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+			}
+		}
+
+		evictor.execute(new Runnable() {
+			@Override
+			public void run() {
+				evictionQueued.set(false);
+				try {
+					evict();
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		});
+	}
+
+
+	/**
+	 * Reads the journal, keeping the last record for each file ID.  A record
+	 * cut short by a crash ends the journal.
+	 */
+	private synchronized void load()
+	{
+		if (!indexFile.exists()) return;
+
+		boolean truncated = false;
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile), CurseLib.STREAM_BUFFER_SIZE));
+			if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+				in.close();
+				in = null;
+				rewrite();
+				return;
+			}
+
+			while (true) {
+				byte type;
+				try {
+					type = in.readByte();
+				} catch (EOFException e) {
+					break;
+				}
+
+				int fileID = in.readInt();
+				journalRecords++;
+
+				if (type == RECORD_PUT) {
+					int projectID = in.readInt();
+					String path = in.readUTF();
+					long size = in.readLong();
+					long fingerprint = in.readLong();
+					long lastAccess = in.readLong();
+
+					File file = new File(path);
+					if (!file.isAbsolute()) file = new File(directory, path);
+					entries.put(fileID, new Entry(projectID, fileID, file, size, fingerprint, lastAccess));
+				}
+				else if (type == RECORD_ACCESS) {
+					long lastAccess = in.readLong();
+					Entry entry = entries.get(fileID);
+					if (entry != null) entry.lastAccess = entry.savedAccess = lastAccess;
+				}
+				else entries.remove(fileID);
+			}
+		}
+		catch (EOFException e) {
+			truncated = true;
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+		finally {
+			CurseLib.closeQuietly(in);
+		}
+
+		for (Entry entry : entries.values()) totalSize.addAndGet(entry.size);
+
+		// Later records can't be appended after a partial one
+		if (truncated || journalRecords > entries.size() * 2 + 16) rewrite();
+	}
+
+
+	/**
+	 * Records a new use time for an entry.
+	 */
+	private synchronized void saveAccess(Entry entry)
+	{
+		if (entries.get(entry.fileID) != entry) return;
+
+		entry.savedAccess = entry.lastAccess;
+		append(entry, RECORD_ACCESS);
+	}
+
+
+	/**
+	 * Appends a record to the journal, or rewrites it instead if it's
+	 * missing or mostly superseded records.
+	 */
+	private void append(Entry entry, byte type)
+	{
+		if (!indexFile.exists() || journalRecords > entries.size() * 2 + 16) {
+			rewrite();
+			return;
+		}
+
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile, true)));
+			writeRecord(out, entry, type);
+			out.close();
+			out = null;
+			journalRecords++;
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			CurseLib.closeQuietly(out);
+		}
+	}
+
+
+	/**
+	 * Replaces the journal with one holding only the live entries.
+	 */
+	private void rewrite()
+	{
+		if (!directory.exists()) directory.mkdirs();
+
+		DataOutputStream out = null;
+		File tempFile = null;
+		try {
+			tempFile = File.createTempFile("index", ".tmp", directory);
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), CurseLib.STREAM_BUFFER_SIZE));
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT_VERSION);
+			for (Entry entry : entries.values()) {
+				entry.savedAccess = entry.lastAccess;
+				writeRecord(out, entry, RECORD_PUT);
+			}
+			out.close();
+			out = null;
+
+			CurseLib.replaceFile(tempFile, indexFile);
+			tempFile = null;
+			journalRecords = entries.size();
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			CurseLib.closeQuietly(out);
+			if (tempFile != null) tempFile.delete();
+		}
+	}
+
+
+	private void writeRecord(DataOutputStream out, Entry entry, byte type) throws IOException
+	{
+		out.writeByte(type);
+		out.writeInt(entry.fileID);
+
+		if (type == RECORD_PUT) {
+			out.writeInt(entry.projectID);
+			out.writeUTF(relativePath(entry.file));
+			out.writeLong(entry.size);
+			out.writeLong(entry.fingerprint);
+			out.writeLong(entry.lastAccess);
+		}
+		else if (type == RECORD_ACCESS) {
+			out.writeLong(entry.lastAccess);
+		}
+	}
+
+
+	/**
+	 * Returns the path of a file relative to the cache directory, so the
+	 * cache can be moved.
+	 */
+	private String relativePath(File file)
+	{
+		String root = directory.getAbsolutePath() + File.separator;
+		String path = file.getAbsolutePath();
+		return path.startsWith(root) ? path.substring(root.length()) : path;
+	}
+}
@@ -0,0 +1,278 @@
+package net.fybertech.curselib.database;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import net.fybertech.curselib.database.manifest.CurseManifest;
+import net.fybertech.curselib.database.manifest.ManifestFile;
+
+/**
+ * Finds or downloads all files of a modpack manifest at once.
+ *
+ * Files are fetched through CurseDatabase.findOrDownloadFile on a fixed
+ * number of threads, sharing CurseLib's HTTP client, whose connection limit
+ * bounds the requests open at once.  There's no separate limit per host,
+ * since every file is requested from the Curse site and served by whichever
+ * CDN host that redirects to, which isn't known until the request is made.
+ * If a required file fails, the files not yet finished are cancelled and
+ * download returns right away; optional files that fail are only reported
+ * in their results.
+ *
+ * The manifest's files are pinned in the file cache while they download,
+ * so earlier ones can't be evicted to make room for later ones.  To keep
+ * them until the pack is assembled, take a pin with pin(manifest) first,
+ * pass it to download, and close it once assembly is done.
+ *
+ * download doesn't return until all of its threads have stopped, so no file
+ * is still being written once it has.  A cancelled file stops at its next
+ * write, which can take up to the HTTP client's read timeout if its thread
+ * is blocked reading the response.  Other callers waiting on the same file
+ * in the cache start it again themselves rather than sharing the
+ * cancellation.
+ */
+public class CurseManifestDownloader
+{
+	/**
+	 * Outcome of one manifest file.
+	 */
+	public static class Result
+	{
+		public final ManifestFile manifestFile;
+
+		/** The local file, or null if it couldn't be fetched */
+		public final File file;
+
+		/** Why the file couldn't be fetched, or null */
+		public final Exception error;
+
+		public Result(ManifestFile manifestFile, File file, Exception error)
+		{
+			this.manifestFile = manifestFile;
+			this.file = file;
+			this.error = error;
+		}
+
+		public boolean isSuccessful()
+		{
+			return file != null;
+		}
+
+		@Override
+		public String toString()
+		{
+			return "Result [file=" + manifestFile + ", " + (file != null ? file : error) + "]";
+		}
+	}
+
+
+	/**
+	 * Receives progress of a download.  Methods are called on the download
+	 * threads, so they may be called concurrently.
+	 */
+	public static interface Listener
+	{
+		public void fileStarted(ManifestFile file);
+
+		/**
+		 * Called as each file succeeds or fails, with the number of files
+		 * finished so far out of the total.
+		 */
+		public void fileFinished(Result result, int finished, int total);
+	}
+
+
+	/** Default number of files fetched at once */
+	public static final int DEFAULT_THREADS = 8;
+
+	private final CurseDatabase database;
+	private int threads = DEFAULT_THREADS;
+	private Listener listener = null;
+
+
+
+	public CurseManifestDownloader(CurseDatabase database)
+	{
+		this.database = database;
+	}
+
+
+	public CurseManifestDownloader setThreads(int threads)
+	{
+		this.threads = threads;
+		return this;
+	}
+
+
+	public CurseManifestDownloader setListener(Listener listener)
+	{
+		this.listener = listener;
+		return this;
+	}
+
+
+	/**
+	 * Pins every file of the manifest in the database's file cache, whether
+	 * or not it has been downloaded yet.
+	 */
+	public CurseFileCache.Pin pin(CurseManifest manifest)
+	{
+		ManifestFile[] files = manifest.files != null ? manifest.files : new ManifestFile[0];
+		int[] fileIDs = new int[files.length];
+		for (int n = 0; n < files.length; n++) fileIDs[n] = files[n].fileID;
+		return database.getFileCache().pin(fileIDs);
+	}
+
+
+	/**
+	 * Finds or downloads every file in the manifest, pinning them only until
+	 * this returns.
+	 *
+	 * @return The result of each file, in manifest order.  If a required
+	 * file failed, files that didn't finish have a CancellationException as
+	 * their error.
+	 */
+	public List<Result> download(CurseManifest manifest)
+	{
+		CurseFileCache.Pin pin = pin(manifest);
+		try {
+			return download(manifest, pin);
+		}
+		finally {
+			pin.close();
+		}
+	}
+
+
+	/**
+	 * Finds or downloads every file in the manifest while they're held by
+	 * the caller's pin from pin(manifest), which is left open so the files
+	 * stay in the cache until the caller closes it.
+	 *
+	 * @return The result of each file, in manifest order.  If a required
+	 * file failed, files that didn't finish have a CancellationException as
+	 * their error.
+	 */
+	public List<Result> download(CurseManifest manifest, CurseFileCache.Pin pin)
+	{
+		if (pin.isClosed()) throw new IllegalStateException("Pin is already closed");
+
+		final ManifestFile[] files = manifest.files != null ? manifest.files : new ManifestFile[0];
+		if (files.length == 0) return new ArrayList<>();
+		final AtomicReferenceArray<Result> results = new AtomicReferenceArray<>(files.length);
+
+		final AtomicInteger finished = new AtomicInteger();
+		final AtomicBoolean cancelled = new AtomicBoolean();
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, files.length)), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "CurseManifestDownloader");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		ExecutorCompletionService<Result> completion = new ExecutorCompletionService<>(pool);
+
+		try {
+			for (int n = 0; n < files.length; n++) {
+				final int index = n;
+				completion.submit(new Callable<Result>() {
+					@Override
+					public Result call() {
+						Result result = fetch(files[index]);
+						if (cancelled.get()) return result;
+						results.set(index, result);
+						if (listener != null) listener.fileFinished(result, finished.incrementAndGet(), files.length);
+						return result;
+					}
+				});
+			}
+
+			for (int n = 0; n < files.length; n++) {
+				Result result;
+				try {
+					result = completion.take().get();
+				}
+				catch (ExecutionException e) {
+					continue;
+				}
+
+				if (!result.isSuccessful() && result.manifestFile.required) break;
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		finally {
+			cancelled.set(true);
+			pool.shutdownNow();
+			awaitTermination(pool);
+		}
+
+		List<Result> list = new ArrayList<>(files.length);
+		for (int n = 0; n < files.length; n++) {
+			Result result = results.get(n);
+			list.add(result != null ? result : new Result(files[n], null, new CancellationException("Download cancelled")));
+		}
+		return list;
+	}
+
+
+	/**
+	 * Waits for the threads of a shut down pool to stop, keeping any
+	 * interrupt of the calling thread for afterwards.
+	 */
+	private static void awaitTermination(ExecutorService pool)
+	{
+		boolean interrupted = false;
+		while (!pool.isTerminated()) {
+			try {
+				pool.awaitTermination(1, TimeUnit.MINUTES);
+			}
+			catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) Thread.currentThread().interrupt();
+	}
+
+
+	/**
+	 * Fetches one file.
+	 */
+	private Result fetch(ManifestFile manifestFile)
+	{
+		if (listener != null) listener.fileStarted(manifestFile);
+
+		try {
+			return new Result(manifestFile, database.findOrDownloadFile(manifestFile.projectID, manifestFile.fileID), null);
+		}
+		catch (IOException | RuntimeException e) {
+			return new Result(manifestFile, null, e);
+		}
+	}
+
+
+	/**
+	 * Returns true if every required file in the results was fetched.
+	 */
+	public static boolean isComplete(List<Result> results)
+	{
+		for (Result result : results) {
+			if (!result.isSuccessful() && result.manifestFile.required) return false;
+		}
+		return true;
+	}
+}
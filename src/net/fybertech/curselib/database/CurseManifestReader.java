@@ -0,0 +1,311 @@
+package net.fybertech.curselib.database;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import net.fybertech.curselib.CurseLib;
+import net.fybertech.curselib.database.manifest.CurseManifest;
+
+/**
+ * Reads manifest.json out of modpack archives.
+ *
+ * Rather than opening the archive as a ZipFile, which reads every entry of
+ * the central directory into objects, the end of the file and the central
+ * directory are read with positional reads and scanned in place for the one
+ * record naming manifest.json.  Only that entry is read and inflated, and
+ * the JSON is parsed straight from the inflated bytes.  The archive is
+ * closed again before returning, so it can be deleted or replaced right
+ * away.  Archives this can't handle, such as Zip64 ones, are read with
+ * ZipFile instead.
+ *
+ * Manifests read with a file ID and fingerprint are also cached, so asking
+ * for the same file again doesn't touch the archive at all.  Cached
+ * manifests are shared and shouldn't be changed.
+ */
+public class CurseManifestReader
+{
+	private static final String MANIFEST_NAME = "manifest.json";
+
+	private static final int EOCD_SIGNATURE = 0x06054b50;
+	private static final int CENTRAL_SIGNATURE = 0x02014b50;
+	private static final int LOCAL_SIGNATURE = 0x04034b50;
+
+	private static final int EOCD_SIZE = 22;
+	private static final int CENTRAL_HEADER_SIZE = 46;
+	private static final int LOCAL_HEADER_SIZE = 30;
+
+	/** Largest manifest inflated, to guard against damaged size fields */
+	private static final int MAX_MANIFEST_SIZE = 16 * 1024 * 1024;
+
+	/** Number of manifests kept in the cache */
+	private static final int CACHE_SIZE = 64;
+
+	private static final Gson gson = new Gson();
+
+	/** Parsed manifests by file ID, with the fingerprint they were read for */
+	private static final Map<Integer, CachedManifest> cache = new LinkedHashMap<Integer, CachedManifest>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, CachedManifest> eldest) {
+			return size() > CACHE_SIZE;
+		}
+	};
+
+
+	private static class CachedManifest
+	{
+		final long fingerprint;
+		final CurseManifest manifest;
+
+		CachedManifest(long fingerprint, CurseManifest manifest)
+		{
+			this.fingerprint = fingerprint;
+			this.manifest = manifest;
+		}
+	}
+
+
+
+	/**
+	 * Returns the manifest of the modpack archive with the specified file ID
+	 * and fingerprint, from the cache if it was read before.  A fingerprint
+	 * of 0 skips the cache.
+	 *
+	 * @return The manifest, or null if the archive has none.
+	 */
+	public static CurseManifest read(File archive, int fileID, long fingerprint) throws IOException
+	{
+		if (fingerprint != 0) {
+			synchronized (cache) {
+				CachedManifest cached = cache.get(fileID);
+				if (cached != null && cached.fingerprint == fingerprint) return cached.manifest;
+			}
+		}
+
+		CurseManifest manifest = read(archive);
+
+		if (fingerprint != 0 && manifest != null) {
+			synchronized (cache) {
+				cache.put(fileID, new CachedManifest(fingerprint, manifest));
+			}
+		}
+
+		return manifest;
+	}
+
+
+	/**
+	 * Reads the manifest of a modpack archive.
+	 *
+	 * @return The manifest, or null if the archive has none.
+	 */
+	public static CurseManifest read(File archive) throws IOException
+	{
+		byte[] json;
+		try {
+			json = findManifest(archive);
+		}
+		catch (ZipException e) {
+			json = findManifestWithZipFile(archive);
+		}
+
+		if (json == null) return null;
+
+		Reader reader = new InputStreamReader(new ByteArrayInputStream(json), StandardCharsets.UTF_8);
+		try {
+			return gson.fromJson(reader, CurseManifest.class);
+		}
+		catch (JsonParseException e) {
+			throw new IOException("Invalid manifest in " + archive, e);
+		}
+	}
+
+
+	/**
+	 * Returns the uncompressed manifest by way of the central directory, or
+	 * null if the archive has none.
+	 *
+	 * @throws ZipException If the archive is in a form not handled here.
+	 */
+	private static byte[] findManifest(File archive) throws IOException
+	{
+		FileChannel channel = FileChannel.open(archive.toPath(), StandardOpenOption.READ);
+		try {
+			long fileSize = channel.size();
+			if (fileSize < EOCD_SIZE) throw new ZipException("Not a zip file");
+
+			// The end record is followed by a comment of up to 64 KB
+			int tailSize = (int)Math.min(fileSize, EOCD_SIZE + 0xFFFF);
+			ByteBuffer tail = read(channel, fileSize - tailSize, tailSize);
+
+			int eocd = -1;
+			for (int pos = tailSize - EOCD_SIZE; pos >= 0; pos--) {
+				if (tail.getInt(pos) == EOCD_SIGNATURE) {
+					eocd = pos;
+					break;
+				}
+			}
+			if (eocd < 0) throw new ZipException("No end of central directory");
+
+			int entryCount = tail.getShort(eocd + 10) & 0xFFFF;
+			long directorySize = tail.getInt(eocd + 12) & 0xFFFFFFFFL;
+			long directoryOffset = tail.getInt(eocd + 16) & 0xFFFFFFFFL;
+			if (entryCount == 0xFFFF || directorySize == 0xFFFFFFFFL || directoryOffset == 0xFFFFFFFFL) throw new ZipException("Zip64 archive");
+			if (directoryOffset + directorySize > fileSize) throw new ZipException("Central directory out of range");
+
+			ByteBuffer directory = read(channel, directoryOffset, (int)directorySize);
+			byte[] name = MANIFEST_NAME.getBytes(StandardCharsets.US_ASCII);
+
+			int pos = 0;
+			for (int n = 0; n < entryCount; n++) {
+				if (pos + CENTRAL_HEADER_SIZE > directorySize || directory.getInt(pos) != CENTRAL_SIGNATURE) throw new ZipException("Damaged central directory");
+
+				int nameLength = directory.getShort(pos + 28) & 0xFFFF;
+				int extraLength = directory.getShort(pos + 30) & 0xFFFF;
+				int commentLength = directory.getShort(pos + 32) & 0xFFFF;
+
+				if (nameLength == name.length && nameMatches(directory, pos + CENTRAL_HEADER_SIZE, name)) {
+					if ((directory.getShort(pos + 8) & 1) != 0) throw new ZipException("Encrypted manifest");
+
+					int method = directory.getShort(pos + 10) & 0xFFFF;
+					int crc = directory.getInt(pos + 16);
+					long compressedSize = directory.getInt(pos + 20) & 0xFFFFFFFFL;
+					long size = directory.getInt(pos + 24) & 0xFFFFFFFFL;
+					long localOffset = directory.getInt(pos + 42) & 0xFFFFFFFFL;
+
+					return readEntry(channel, fileSize, localOffset, method, compressedSize, size, crc);
+				}
+
+				pos += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+			}
+
+			return null;
+		}
+		finally {
+			channel.close();
+		}
+	}
+
+
+	/**
+	 * Reads and uncompresses one entry, checking it against its CRC.
+	 */
+	private static byte[] readEntry(FileChannel channel, long fileSize, long localOffset, int method, long compressedSize, long size, int crc) throws IOException
+	{
+		if (size > MAX_MANIFEST_SIZE || compressedSize > MAX_MANIFEST_SIZE) throw new ZipException("Manifest too large");
+		if (localOffset + LOCAL_HEADER_SIZE > fileSize) throw new ZipException("Local header out of range");
+
+		ByteBuffer header = read(channel, localOffset, LOCAL_HEADER_SIZE);
+		if (header.getInt(0) != LOCAL_SIGNATURE) throw new ZipException("Damaged local header");
+
+		long dataOffset = localOffset + LOCAL_HEADER_SIZE + (header.getShort(26) & 0xFFFF) + (header.getShort(28) & 0xFFFF);
+		if (dataOffset + compressedSize > fileSize) throw new ZipException("Entry out of range");
+
+		byte[] compressed = read(channel, dataOffset, (int)compressedSize).array();
+
+		byte[] data;
+		if (method == ZipEntry.STORED) {
+			data = compressed;
+		}
+		else if (method == ZipEntry.DEFLATED) {
+			data = new byte[(int)size];
+			Inflater inflater = new Inflater(true);
+			try {
+				inflater.setInput(compressed);
+				int length = 0;
+				while (length < data.length) {
+					int count = inflater.inflate(data, length, data.length - length);
+					if (count == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) break;
+					length += count;
+				}
+				if (length != data.length) throw new ZipException("Manifest shorter than its recorded size");
+			}
+			catch (DataFormatException e) {
+				throw new ZipException("Damaged manifest: " + e.getMessage());
+			}
+			finally {
+				inflater.end();
+			}
+		}
+		else {
+			throw new ZipException("Unsupported compression method " + method);
+		}
+
+		CRC32 check = new CRC32();
+		check.update(data);
+		if ((int)check.getValue() != crc) throw new ZipException("Manifest CRC mismatch");
+
+		return data;
+	}
+
+
+	/**
+	 * Returns the manifest read with ZipFile, or null if there's none.
+	 */
+	private static byte[] findManifestWithZipFile(File archive) throws IOException
+	{
+		ZipFile zip = new ZipFile(archive);
+		try {
+			for (Enumeration<? extends ZipEntry> en = zip.entries(); en.hasMoreElements();) {
+				ZipEntry entry = en.nextElement();
+				if (entry.getName().equalsIgnoreCase(MANIFEST_NAME)) return CurseLib.writeStreamToArray(zip.getInputStream(entry));
+			}
+			return null;
+		}
+		finally {
+			zip.close();
+		}
+	}
+
+
+	/**
+	 * Compares a name in the buffer to the expected one, ignoring ASCII case.
+	 */
+	private static boolean nameMatches(ByteBuffer buffer, int pos, byte[] name)
+	{
+		for (int n = 0; n < name.length; n++) {
+			int b = buffer.get(pos + n);
+			if (b >= 'A' && b <= 'Z') b += 'a' - 'A';
+			if (b != name[n]) return false;
+		}
+		return true;
+	}
+
+
+	/**
+	 * Reads size bytes at the specified position of the channel into a
+	 * little-endian heap buffer.
+	 */
+	private static ByteBuffer read(FileChannel channel, long position, int size) throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) == -1) throw new EOFException("Archive ended early");
+		}
+		buffer.clear();
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		return buffer;
+	}
+}
@@ -0,0 +1,243 @@
+package net.fybertech.curselib.database;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary form of the nested project arrays, shared by CurseProjectStore and
+ * CurseDatabaseSnapshot.
+ *
+ * Strings are written as indexes into a table of distinct strings, and
+ * category sections as indexes into a table of distinct sections, both of
+ * which are collected while encoding.  A null string, section or array is
+ * written as -1.
+ */
+class CurseProjectCodec
+{
+	private final Map<String, Integer> stringIds = new HashMap<>();
+	final List<String> strings = new ArrayList<>();
+
+	private final Map<String, Integer> sectionIds = new HashMap<>();
+	final List<CategorySection> sections = new ArrayList<>();
+
+
+
+	/**
+	 * Returns the table index of the string, adding it if needed, or -1 for
+	 * null.
+	 */
+	int string(String s)
+	{
+		if (s == null) return -1;
+
+		Integer id = stringIds.get(s);
+		if (id == null) {
+			id = strings.size();
+			strings.add(s);
+			stringIds.put(s, id);
+		}
+		return id;
+	}
+
+
+	/**
+	 * Returns the table index of an identical section, adding it if needed,
+	 * or -1 for null.  Sections that share an ID but differ in any field are
+	 * kept apart, so every project gets back a section equal to its own.
+	 */
+	int section(CategorySection section)
+	{
+		if (section == null) return -1;
+
+		String key = sectionKey(section);
+		Integer id = sectionIds.get(key);
+		if (id == null) {
+			id = sections.size();
+			sections.add(section);
+			sectionIds.put(key, id);
+		}
+		return id;
+	}
+
+
+	/**
+	 * Returns a key which is equal for two sections only if all of their
+	 * fields are.
+	 */
+	static String sectionKey(CategorySection section)
+	{
+		return section.ID + "\u0000" + section.GameID + "\u0000" + section.Name + "\u0000" + section.PackageType + "\u0000"
+				+ section.Path + "\u0000" + section.InitialInclusionPattern + "\u0000" + section.ExtraIncludePattern;
+	}
+
+
+	/**
+	 * Writes the authors, attachments, latest files, categories and game
+	 * version files of the project.
+	 */
+	void writeNested(DataOutputStream out, CurseProject p) throws IOException
+	{
+		if (p.Authors == null) out.writeInt(-1);
+		else {
+			out.writeInt(p.Authors.length);
+			for (CurseAuthor author : p.Authors) {
+				out.writeInt(string(author.Name));
+				out.writeInt(string(author.Url));
+			}
+		}
+
+		if (p.Attachments == null) out.writeInt(-1);
+		else {
+			out.writeInt(p.Attachments.length);
+			for (CurseAttachment attachment : p.Attachments) {
+				out.writeInt(string(attachment.Description));
+				out.writeBoolean(attachment.IsDefault);
+				out.writeInt(string(attachment.ThumbnailUrl));
+				out.writeInt(string(attachment.Title));
+				out.writeInt(string(attachment.Url));
+			}
+		}
+
+		if (p.LatestFiles == null) out.writeInt(-1);
+		else {
+			out.writeInt(p.LatestFiles.length);
+			for (CurseFile file : p.LatestFiles) {
+				out.writeInt(file.Id);
+				out.writeInt(string(file.FileName));
+				out.writeInt(string(file.FileNameOnDisk));
+				out.writeInt(string(file.FileDate));
+				out.writeInt(file.ReleaseType);
+				out.writeInt(file.FileStatus);
+				out.writeInt(string(file.DownloadURL));
+				out.writeBoolean(file.IsAlternate);
+				out.writeInt(file.AlternateFileId);
+				out.writeBoolean(file.IsAvailable);
+				out.writeLong(file.PackageFingerprint);
+				if (file.GameVersion == null) out.writeInt(-1);
+				else {
+					out.writeInt(file.GameVersion.length);
+					for (String version : file.GameVersion) out.writeInt(string(version));
+				}
+			}
+		}
+
+		if (p.Categories == null) out.writeInt(-1);
+		else {
+			out.writeInt(p.Categories.length);
+			for (CurseCategory category : p.Categories) {
+				out.writeInt(category.Id);
+				out.writeInt(string(category.Name));
+				out.writeInt(string(category.URL));
+			}
+		}
+
+		if (p.GameVersionLatestFiles == null) out.writeInt(-1);
+		else {
+			out.writeInt(p.GameVersionLatestFiles.length);
+			for (CurseFileStub stub : p.GameVersionLatestFiles) {
+				out.writeInt(string(stub.GameVesion));
+				out.writeInt(stub.ProjectFileID);
+				out.writeInt(string(stub.ProjectFileName));
+				out.writeInt(stub.FileType);
+			}
+		}
+	}
+
+
+	/**
+	 * Reads what writeNested wrote into the project, resolving strings
+	 * against the finished string table.
+	 */
+	static void readNested(ByteBuffer in, CurseProject p, String[] strings)
+	{
+		int count = in.getInt();
+		if (count >= 0) {
+			p.Authors = new CurseAuthor[count];
+			for (int n = 0; n < count; n++) {
+				CurseAuthor author = new CurseAuthor();
+				author.Name = string(in, strings);
+				author.Url = string(in, strings);
+				p.Authors[n] = author;
+			}
+		}
+
+		count = in.getInt();
+		if (count >= 0) {
+			p.Attachments = new CurseAttachment[count];
+			for (int n = 0; n < count; n++) {
+				CurseAttachment attachment = new CurseAttachment();
+				attachment.Description = string(in, strings);
+				attachment.IsDefault = in.get() != 0;
+				attachment.ThumbnailUrl = string(in, strings);
+				attachment.Title = string(in, strings);
+				attachment.Url = string(in, strings);
+				p.Attachments[n] = attachment;
+			}
+		}
+
+		count = in.getInt();
+		if (count >= 0) {
+			p.LatestFiles = new CurseFile[count];
+			for (int n = 0; n < count; n++) {
+				CurseFile file = new CurseFile();
+				file.Id = in.getInt();
+				file.FileName = string(in, strings);
+				file.FileNameOnDisk = string(in, strings);
+				file.FileDate = string(in, strings);
+				file.ReleaseType = in.getInt();
+				file.FileStatus = in.getInt();
+				file.DownloadURL = string(in, strings);
+				file.IsAlternate = in.get() != 0;
+				file.AlternateFileId = in.getInt();
+				file.IsAvailable = in.get() != 0;
+				file.PackageFingerprint = in.getLong();
+				int versionCount = in.getInt();
+				if (versionCount >= 0) {
+					file.GameVersion = new String[versionCount];
+					for (int v = 0; v < versionCount; v++) file.GameVersion[v] = string(in, strings);
+				}
+				p.LatestFiles[n] = file;
+			}
+		}
+
+		count = in.getInt();
+		if (count >= 0) {
+			p.Categories = new CurseCategory[count];
+			for (int n = 0; n < count; n++) {
+				CurseCategory category = new CurseCategory();
+				category.Id = in.getInt();
+				category.Name = string(in, strings);
+				category.URL = string(in, strings);
+				p.Categories[n] = category;
+			}
+		}
+
+		count = in.getInt();
+		if (count >= 0) {
+			p.GameVersionLatestFiles = new CurseFileStub[count];
+			for (int n = 0; n < count; n++) {
+				CurseFileStub stub = new CurseFileStub();
+				stub.GameVesion = string(in, strings);
+				stub.ProjectFileID = in.getInt();
+				stub.ProjectFileName = string(in, strings);
+				stub.FileType = in.getInt();
+				p.GameVersionLatestFiles[n] = stub;
+			}
+		}
+	}
+
+
+	/**
+	 * Reads a string table index and returns the string, or null for -1.
+	 */
+	static String string(ByteBuffer in, String[] strings)
+	{
+		int ref = in.getInt();
+		return ref < 0 ? null : strings[ref];
+	}
+}
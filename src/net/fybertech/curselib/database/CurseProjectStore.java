@@ -0,0 +1,320 @@
+package net.fybertech.curselib.database;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Compact, read-only storage for a fixed set of projects.
+ *
+ * The fields used for indexing and ranking are kept in primitive arrays,
+ * every string is stored once in a shared dictionary, and all remaining
+ * fields and nested arrays are encoded into a direct ByteBuffer outside of
+ * the Java heap.  CurseProject objects are only created when a project is
+ * requested, and are held weakly so asking again returns the same object
+ * for as long as it's still in use.
+ */
+public class CurseProjectStore
+{
+	private final int size;
+
+	// Hot columns
+	private final int[] ids;
+	private final double[] downloadCounts;
+	private final double[] popularityScores;
+	private final int[] ratings;
+	private final int[] packageTypes;
+	private final int[] defaultFileIds;
+	/** Index into sections, or -1 */
+	private final int[] sectionOrdinals;
+	/** Index into strings of the primary category name, or -1 */
+	private final int[] primaryCategoryOrdinals;
+
+	/** Distinct category sections, shared by all projects using them */
+	private final CategorySection[] sections;
+
+	/** Every distinct string used by the projects */
+	private final String[] strings;
+
+	/** Remaining fields of all projects, back to back */
+	private final ByteBuffer buffer;
+	private final int[] offsets;
+
+	/** Projects created so far, by position */
+	private final WeakReference<CurseProject>[] views;
+
+
+
+	/**
+	 * Copies the specified projects into a new store.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public CurseProjectStore(CurseProject[] projects)
+	{
+		size = projects.length;
+		ids = new int[size];
+		downloadCounts = new double[size];
+		popularityScores = new double[size];
+		ratings = new int[size];
+		packageTypes = new int[size];
+		defaultFileIds = new int[size];
+		sectionOrdinals = new int[size];
+		primaryCategoryOrdinals = new int[size];
+		offsets = new int[size];
+		views = new WeakReference[size];
+
+		Encoder encoder = new Encoder();
+		try {
+			for (int n = 0; n < size; n++) {
+				CurseProject p = projects[n];
+				ids[n] = p.Id;
+				downloadCounts[n] = p.DownloadCount;
+				popularityScores[n] = p.PopularityScore;
+				ratings[n] = p.Rating;
+				packageTypes[n] = p.PackageType;
+				defaultFileIds[n] = p.DefaultFileId;
+				sectionOrdinals[n] = encoder.section(p.CategorySection);
+				primaryCategoryOrdinals[n] = encoder.string(p.PrimaryCategoryName);
+
+				offsets[n] = encoder.out.size();
+				encoder.encode(p);
+			}
+		}
+		catch (IOException e) {
+			// Only writing to memory
+			throw new UncheckedIOException(e);
+		}
+
+		sections = encoder.sections.toArray(new CategorySection[encoder.sections.size()]);
+		strings = encoder.strings.toArray(new String[encoder.strings.size()]);
+
+		byte[] bytes = encoder.bytes.toByteArray();
+		buffer = ByteBuffer.allocateDirect(bytes.length);
+		buffer.put(bytes);
+		buffer.flip();
+	}
+
+
+	/**
+	 * Returns the number of projects in the store.
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+
+	/**
+	 * Returns the project at the specified position, creating it if it isn't
+	 * already in use.
+	 */
+	public CurseProject get(int pos)
+	{
+		WeakReference<CurseProject> ref = views[pos];
+		CurseProject project = ref == null ? null : ref.get();
+		if (project != null) return project;
+
+		synchronized (views) {
+			ref = views[pos];
+			project = ref == null ? null : ref.get();
+			if (project == null) {
+				project = decode(pos);
+				views[pos] = new WeakReference<>(project);
+			}
+		}
+		return project;
+	}
+
+
+	/**
+	 * Creates every project and returns them as an array.
+	 */
+	public CurseProject[] toArray()
+	{
+		CurseProject[] projects = new CurseProject[size];
+		for (int n = 0; n < size; n++) projects[n] = get(n);
+		return projects;
+	}
+
+
+	/**
+	 * Returns a read-only list view of the projects, which creates each one
+	 * only when it's accessed.
+	 */
+	public List<CurseProject> asList()
+	{
+		return new ProjectList();
+	}
+
+
+	public int getId(int pos)
+	{
+		return ids[pos];
+	}
+
+	public double getDownloadCount(int pos)
+	{
+		return downloadCounts[pos];
+	}
+
+	public double getPopularityScore(int pos)
+	{
+		return popularityScores[pos];
+	}
+
+	public int getRating(int pos)
+	{
+		return ratings[pos];
+	}
+
+	public int getPackageType(int pos)
+	{
+		return packageTypes[pos];
+	}
+
+	public int getDefaultFileId(int pos)
+	{
+		return defaultFileIds[pos];
+	}
+
+	/**
+	 * Returns the shared category section of the project, or null.
+	 */
+	public CategorySection getCategorySection(int pos)
+	{
+		int ordinal = sectionOrdinals[pos];
+		return ordinal < 0 ? null : sections[ordinal];
+	}
+
+	public String getPrimaryCategoryName(int pos)
+	{
+		int ordinal = primaryCategoryOrdinals[pos];
+		return ordinal < 0 ? null : strings[ordinal];
+	}
+
+
+	/**
+	 * Returns the number of bytes held outside the Java heap.
+	 */
+	public long getOffHeapBytes()
+	{
+		return buffer.capacity();
+	}
+
+
+	/**
+	 * Returns the number of distinct strings in the dictionary.
+	 */
+	public int getStringCount()
+	{
+		return strings.length;
+	}
+
+
+	private CurseProject decode(int pos)
+	{
+		ByteBuffer in = buffer.duplicate();
+		in.position(offsets[pos]);
+
+		CurseProject p = new CurseProject();
+		p.Id = ids[pos];
+		p.DownloadCount = downloadCounts[pos];
+		p.PopularityScore = popularityScores[pos];
+		p.Rating = ratings[pos];
+		p.PackageType = packageTypes[pos];
+		p.DefaultFileId = defaultFileIds[pos];
+		p.CategorySection = getCategorySection(pos);
+		p.PrimaryCategoryName = getPrimaryCategoryName(pos);
+
+		p.GameId = in.getInt();
+		p.CommentCount = in.getInt();
+		p.InstallCount = in.getInt();
+		p.IconId = in.getInt();
+		p.Status = in.getInt();
+		p.Stage = in.getInt();
+		p.PrimaryCategoryId = in.getInt();
+		p.Likes = in.getInt();
+		p.IsFeatured = in.getInt();
+		p.Name = string(in);
+		p.WebSiteURL = string(in);
+		p.Summary = string(in);
+		p.PrimaryAuthorName = string(in);
+		p.ExternalUrl = string(in);
+		p.DonationUrl = string(in);
+		p.PrimaryCategoryAvatarUrl = string(in);
+		p.AvatarUrl = string(in);
+
+		CurseProjectCodec.readNested(in, p, strings);
+
+		return p;
+	}
+
+
+	private String string(ByteBuffer in)
+	{
+		return CurseProjectCodec.string(in, strings);
+	}
+
+
+
+	/**
+	 * Read-only list that creates projects on access.
+	 */
+	private class ProjectList extends AbstractList<CurseProject> implements RandomAccess
+	{
+		@Override
+		public CurseProject get(int index)
+		{
+			if (index < 0 || index >= size) throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+			return CurseProjectStore.this.get(index);
+		}
+
+		@Override
+		public int size()
+		{
+			return size;
+		}
+	}
+
+
+
+	/**
+	 * Encodes the remaining project fields, building the string dictionary
+	 * and section table as it goes.
+	 */
+	private static class Encoder extends CurseProjectCodec
+	{
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream(1 << 20);
+		final DataOutputStream out = new DataOutputStream(bytes);
+
+
+		void encode(CurseProject p) throws IOException
+		{
+			out.writeInt(p.GameId);
+			out.writeInt(p.CommentCount);
+			out.writeInt(p.InstallCount);
+			out.writeInt(p.IconId);
+			out.writeInt(p.Status);
+			out.writeInt(p.Stage);
+			out.writeInt(p.PrimaryCategoryId);
+			out.writeInt(p.Likes);
+			out.writeInt(p.IsFeatured);
+			out.writeInt(string(p.Name));
+			out.writeInt(string(p.WebSiteURL));
+			out.writeInt(string(p.Summary));
+			out.writeInt(string(p.PrimaryAuthorName));
+			out.writeInt(string(p.ExternalUrl));
+			out.writeInt(string(p.DonationUrl));
+			out.writeInt(string(p.PrimaryCategoryAvatarUrl));
+			out.writeInt(string(p.AvatarUrl));
+
+			writeNested(out, p);
+		}
+	}
+}
@@ -0,0 +1,367 @@
+package net.fybertech.curselib.database;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Relevance-ranked text search over a set of projects.
+ *
+ * Project names, summaries, category names and author names are tokenized
+ * into an inverted index and scored with BM25, with matches in the name
+ * counting for more than matches in the summary.  Scores are then boosted
+ * by how popular and downloaded a project is, and only the requested number
+ * of best results are kept while scoring.
+ */
+public class CurseSearchIndex
+{
+	/**
+	 * A single search hit.
+	 */
+	public static class Result
+	{
+		public final CurseProject project;
+		public final float score;
+
+		public Result(CurseProject project, float score)
+		{
+			this.project = project;
+			this.score = score;
+		}
+
+		@Override
+		public String toString()
+		{
+			return "Result [project=" + project.Name + ", score=" + score + "]";
+		}
+	}
+
+
+	/** BM25 term frequency saturation */
+	private static final float K1 = 1.2f;
+
+	/** BM25 length normalization */
+	private static final float B = 0.75f;
+
+	/** How much each field's term frequencies count */
+	private static final float NAME_WEIGHT = 4.0f;
+	private static final float SUMMARY_WEIGHT = 1.0f;
+	private static final float CATEGORY_WEIGHT = 1.5f;
+	private static final float AUTHOR_WEIGHT = 2.0f;
+
+	/** Largest share of the score that popularity can add */
+	private static final float POPULARITY_BOOST = 0.5f;
+
+
+	private final List<CurseProject> projects;
+
+	/** Term to slot in the postings arrays */
+	private final Map<String, Integer> terms = new HashMap<>();
+
+	/** Documents containing each term, in ascending order */
+	private int[][] postingDocs = new int[1024][];
+
+	/** Field-weighted, length-normalized term frequency for each posting */
+	private float[][] postingFreqs = new float[1024][];
+
+	private int[] postingSizes = new int[1024];
+
+	/** Multiplier applied to each document's score for popularity */
+	private final float[] boosts;
+
+
+
+	/**
+	 * Builds an index over the specified projects.
+	 */
+	public CurseSearchIndex(CurseProject[] projects)
+	{
+		this(Arrays.asList(projects));
+	}
+
+
+	/**
+	 * Builds an index over the specified list of projects, which shouldn't
+	 * change while the index is in use.
+	 */
+	public CurseSearchIndex(List<CurseProject> projects)
+	{
+		this.projects = projects;
+		this.boosts = new float[projects.size()];
+
+		int count = projects.size();
+		List<List<String>> names = new ArrayList<>(count);
+		List<List<String>> summaries = new ArrayList<>(count);
+		List<List<String>> categories = new ArrayList<>(count);
+		List<List<String>> authors = new ArrayList<>(count);
+		double nameTotal = 0, summaryTotal = 0, categoryTotal = 0, authorTotal = 0;
+
+		for (CurseProject project : projects) {
+			List<String> name = tokenize(project.Name);
+			List<String> summary = tokenize(project.Summary);
+
+			List<String> category = new ArrayList<>();
+			if (project.PrimaryCategoryName != null) category.addAll(tokenize(project.PrimaryCategoryName));
+			if (project.Categories != null) {
+				for (CurseCategory cat : project.Categories) category.addAll(tokenize(cat.Name));
+			}
+
+			List<String> author = tokenize(project.PrimaryAuthorName);
+			if (project.Authors != null) {
+				for (CurseAuthor a : project.Authors) {
+					if (a.Name != null && !a.Name.equals(project.PrimaryAuthorName)) author.addAll(tokenize(a.Name));
+				}
+			}
+
+			names.add(name);
+			summaries.add(summary);
+			categories.add(category);
+			authors.add(author);
+			nameTotal += name.size();
+			summaryTotal += summary.size();
+			categoryTotal += category.size();
+			authorTotal += author.size();
+		}
+
+		float nameAvg = average(nameTotal, count);
+		float summaryAvg = average(summaryTotal, count);
+		float categoryAvg = average(categoryTotal, count);
+		float authorAvg = average(authorTotal, count);
+
+		Map<String, Float> freqs = new HashMap<>();
+		for (int doc = 0; doc < count; doc++) {
+			freqs.clear();
+			addField(freqs, names.get(doc), NAME_WEIGHT, nameAvg);
+			addField(freqs, summaries.get(doc), SUMMARY_WEIGHT, summaryAvg);
+			addField(freqs, categories.get(doc), CATEGORY_WEIGHT, categoryAvg);
+			addField(freqs, authors.get(doc), AUTHOR_WEIGHT, authorAvg);
+
+			for (Map.Entry<String, Float> entry : freqs.entrySet()) addPosting(entry.getKey(), doc, entry.getValue());
+		}
+
+		for (int slot = 0; slot < terms.size(); slot++) {
+			postingDocs[slot] = Arrays.copyOf(postingDocs[slot], postingSizes[slot]);
+			postingFreqs[slot] = Arrays.copyOf(postingFreqs[slot], postingSizes[slot]);
+		}
+
+		// Popularity prior, scaled against the most popular project
+		double maxDownloads = 0, maxPopularity = 0;
+		for (CurseProject project : projects) {
+			maxDownloads = Math.max(maxDownloads, Math.log1p(Math.max(0, project.DownloadCount)));
+			maxPopularity = Math.max(maxPopularity, Math.log1p(Math.max(0, project.PopularityScore)));
+		}
+		for (int doc = 0; doc < count; doc++) {
+			CurseProject project = projects.get(doc);
+			double downloads = maxDownloads > 0 ? Math.log1p(Math.max(0, project.DownloadCount)) / maxDownloads : 0;
+			double popularity = maxPopularity > 0 ? Math.log1p(Math.max(0, project.PopularityScore)) / maxPopularity : 0;
+			boosts[doc] = (float)(1 + POPULARITY_BOOST * (downloads + popularity) / 2);
+		}
+	}
+
+
+	/**
+	 * Returns up to limit projects matching any of the query's terms, best
+	 * match first.
+	 */
+	public List<Result> search(String query, int limit)
+	{
+		List<String> queryTerms = tokenize(query);
+		if (queryTerms.isEmpty() || limit <= 0) return new ArrayList<>();
+
+		// Only the documents in the matched postings are scored, so a query
+		// costs time in proportion to its matches rather than the index size
+		int[] slots = new int[queryTerms.size()];
+		int slotCount = 0;
+		long postingTotal = 0;
+		for (String term : new LinkedHashSet<>(queryTerms)) {
+			Integer slot = terms.get(term);
+			if (slot == null) continue;
+			slots[slotCount++] = slot;
+			postingTotal += postingDocs[slot].length;
+		}
+		if (slotCount == 0) return new ArrayList<>();
+
+		ScoreTable scores = new ScoreTable((int)Math.min(projects.size(), postingTotal), projects.size());
+
+		for (int s = 0; s < slotCount; s++) {
+			int[] docs = postingDocs[slots[s]];
+			float[] freqs = postingFreqs[slots[s]];
+			float idf = (float)Math.log(1 + (projects.size() - docs.length + 0.5) / (docs.length + 0.5));
+
+			for (int n = 0; n < docs.length; n++) {
+				float tf = freqs[n];
+				scores.add(docs[n], idf * tf * (K1 + 1) / (tf + K1));
+			}
+		}
+
+		// Keep only the best results in a min-heap of the requested size
+		PriorityQueue<Result> heap = new PriorityQueue<>(Math.min(limit, scores.size), new Comparator<Result>() {
+			@Override
+			public int compare(Result o1, Result o2) {
+				return Float.compare(o1.score, o2.score);
+			}
+		});
+
+		for (int n = 0; n < scores.size; n++) {
+			int doc = scores.docs[n];
+			float score = scores.scores[n] * boosts[doc];
+			if (heap.size() < limit) heap.add(new Result(projects.get(doc), score));
+			else if (score > heap.peek().score) {
+				heap.poll();
+				heap.add(new Result(projects.get(doc), score));
+			}
+		}
+
+		List<Result> results = new ArrayList<>(heap.size());
+		while (!heap.isEmpty()) results.add(heap.poll());
+		Collections.reverse(results);
+
+		return results;
+	}
+
+
+	/**
+	 * Returns the number of distinct terms in the index.
+	 */
+	public int getTermCount()
+	{
+		return terms.size();
+	}
+
+
+	/**
+	 * Splits text into lower-cased runs of letters and digits.
+	 */
+	public static List<String> tokenize(String text)
+	{
+		List<String> tokens = new ArrayList<>();
+		if (text == null) return tokens;
+
+		int start = -1;
+		for (int n = 0; n <= text.length(); n++) {
+			boolean wordChar = n < text.length() && Character.isLetterOrDigit(text.charAt(n));
+			if (wordChar && start < 0) start = n;
+			else if (!wordChar && start >= 0) {
+				tokens.add(text.substring(start, n).toLowerCase());
+				start = -1;
+			}
+		}
+
+		return tokens;
+	}
+
+
+	private static float average(double total, int count)
+	{
+		return count == 0 || total == 0 ? 1 : (float)(total / count);
+	}
+
+
+	/**
+	 * Adds a field's weighted, length-normalized term frequencies.
+	 */
+	private static void addField(Map<String, Float> freqs, List<String> tokens, float weight, float averageLength)
+	{
+		if (tokens.isEmpty()) return;
+
+		float norm = weight / (1 - B + B * tokens.size() / averageLength);
+		for (String token : tokens) {
+			Float current = freqs.get(token);
+			freqs.put(token, (current == null ? 0 : current) + norm);
+		}
+	}
+
+
+	private void addPosting(String term, int doc, float freq)
+	{
+		Integer slot = terms.get(term);
+		if (slot == null) {
+			slot = terms.size();
+			terms.put(term, slot);
+			if (slot == postingDocs.length) {
+				postingDocs = Arrays.copyOf(postingDocs, slot * 2);
+				postingFreqs = Arrays.copyOf(postingFreqs, slot * 2);
+				postingSizes = Arrays.copyOf(postingSizes, slot * 2);
+			}
+			postingDocs[slot] = new int[4];
+			postingFreqs[slot] = new float[4];
+		}
+
+		int size = postingSizes[slot];
+		if (size == postingDocs[slot].length) {
+			postingDocs[slot] = Arrays.copyOf(postingDocs[slot], size * 2);
+			postingFreqs[slot] = Arrays.copyOf(postingFreqs[slot], size * 2);
+		}
+		postingDocs[slot][size] = doc;
+		postingFreqs[slot][size] = freq;
+		postingSizes[slot] = size + 1;
+	}
+
+
+	/**
+	 * Score sums for the documents touched by one query, in an open
+	 * addressed table sized to the number of postings scanned.  When those
+	 * cover a large share of all documents, the table is indexed by document
+	 * directly instead.
+	 */
+	private static class ScoreTable
+	{
+		/** Documents in the order they were first scored */
+		final int[] docs;
+		final float[] scores;
+		int size = 0;
+
+		/** One plus the index of each slot's document in docs, or 0 if free */
+		private final int[] table;
+		private final int mask;
+		private final boolean direct;
+
+		ScoreTable(int expectedDocs, int docCount)
+		{
+			docs = new int[expectedDocs];
+			scores = new float[expectedDocs];
+
+			direct = expectedDocs * 4L >= docCount;
+			if (direct) {
+				table = new int[docCount];
+				mask = 0;
+				return;
+			}
+
+			int capacity = 2;
+			while (capacity < expectedDocs * 2) capacity <<= 1;
+			table = new int[capacity];
+			mask = capacity - 1;
+		}
+
+		void add(int doc, float score)
+		{
+			int slot = doc;
+			if (!direct) {
+				int h = doc * 0x9E3779B9;
+				slot = (h ^ (h >>> 16)) & mask;
+			}
+
+			while (true) {
+				int entry = table[slot];
+				if (entry == 0) {
+					docs[size] = doc;
+					scores[size] = score;
+					table[slot] = ++size;
+					return;
+				}
+				if (docs[entry - 1] == doc) {
+					scores[entry - 1] += score;
+					return;
+				}
+				slot = (slot + 1) & mask;
+			}
+		}
+	}
+}
@@ -0,0 +1,361 @@
+package net.fybertech.curselib.util;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * A map of primitive int keys to int values using open addressing with
+ * linear probing, so no keys or values are boxed and lookups don't chase
+ * pointers through entry nodes.
+ *
+ * Missing keys return a "not found" value chosen when the map is created
+ * rather than null.
+ *
+ * The table is split into fixed-size pages, each holding its keys next to
+ * their values, and copies share their pages with the original until either
+ * side changes one.  Copying a large map to change a few entries only
+ * copies the pages those entries are on.
+ */
+public class IntIntMap
+{
+	/** Key marking an unused slot.  A real key with this value is stored separately. */
+	private static final int FREE_KEY = Integer.MIN_VALUE;
+
+	private static final float LOAD_FACTOR = 0.5f;
+
+	/** Slots per page, as a power of two */
+	private static final int PAGE_BITS = 10;
+	private static final int PAGE_MASK = (1 << PAGE_BITS) - 1;
+
+	/** Table slots, split into pages of alternating keys and values */
+	private int[][] pages;
+	private int capacity;
+	private int mask;
+	private int size = 0;
+	private int resizeAt;
+
+	private boolean hasFreeKey = false;
+	private int freeKeyValue;
+
+	/** Value returned by get() when a key isn't present */
+	private final int missingValue;
+
+	/** Pages shared with another copy, which must be copied before changing */
+	private final BitSet shared = new BitSet();
+
+
+
+	/**
+	 * Creates an empty map which returns -1 for missing keys.
+	 */
+	public IntIntMap()
+	{
+		this(16, -1);
+	}
+
+
+	/**
+	 * Creates an empty map sized to hold the expected number of entries
+	 * without growing, returning missingValue for keys that aren't present.
+	 */
+	public IntIntMap(int expectedSize, int missingValue)
+	{
+		this.missingValue = missingValue;
+		allocate(tableSizeFor(expectedSize));
+	}
+
+
+	/**
+	 * Creates a copy of the specified map.  The original may keep being read
+	 * while the copy is changed, but neither should be changed by more than
+	 * one thread at a time.
+	 */
+	public IntIntMap(IntIntMap other)
+	{
+		this.missingValue = other.missingValue;
+		this.pages = other.pages.clone();
+		this.capacity = other.capacity;
+		this.mask = other.mask;
+		this.size = other.size;
+		this.resizeAt = other.resizeAt;
+		this.hasFreeKey = other.hasFreeKey;
+		this.freeKeyValue = other.freeKeyValue;
+
+		shared.set(0, pages.length);
+		other.shared.set(0, pages.length);
+	}
+
+
+	/**
+	 * Returns the value returned by get() for keys that aren't present.
+	 */
+	public int getMissingValue()
+	{
+		return missingValue;
+	}
+
+
+	/**
+	 * Returns the value for the specified key, or the missing value if
+	 * not present.
+	 */
+	public int get(int key)
+	{
+		if (key == FREE_KEY) return hasFreeKey ? freeKeyValue : missingValue;
+
+		int slot = mix(key) & mask;
+		while (true) {
+			int[] page = pages[slot >>> PAGE_BITS];
+			int index = (slot & PAGE_MASK) << 1;
+			int k = page[index];
+			if (k == key) return page[index + 1];
+			if (k == FREE_KEY) return missingValue;
+			slot = (slot + 1) & mask;
+		}
+	}
+
+
+	/**
+	 * Returns true if the map contains the specified key.
+	 */
+	public boolean containsKey(int key)
+	{
+		if (key == FREE_KEY) return hasFreeKey;
+
+		int slot = mix(key) & mask;
+		while (true) {
+			int k = keyAt(slot);
+			if (k == key) return true;
+			if (k == FREE_KEY) return false;
+			slot = (slot + 1) & mask;
+		}
+	}
+
+
+	/**
+	 * Associates the value with the specified key, replacing any existing
+	 * value.
+	 *
+	 * @return The previous value, or the missing value if there wasn't one.
+	 */
+	public int put(int key, int value)
+	{
+		if (key == FREE_KEY) {
+			int previous = hasFreeKey ? freeKeyValue : missingValue;
+			if (!hasFreeKey) size++;
+			hasFreeKey = true;
+			freeKeyValue = value;
+			return previous;
+		}
+
+		int slot = mix(key) & mask;
+		while (true) {
+			int k = keyAt(slot);
+			if (k == key) {
+				int[] page = writablePage(slot);
+				int index = ((slot & PAGE_MASK) << 1) + 1;
+				int previous = page[index];
+				page[index] = value;
+				return previous;
+			}
+			if (k == FREE_KEY) break;
+			slot = (slot + 1) & mask;
+		}
+
+		set(slot, key, value);
+		if (++size > resizeAt) allocate(capacity * 2);
+
+		return missingValue;
+	}
+
+
+	/**
+	 * Associates the value with the specified key only if the key isn't
+	 * already present.
+	 *
+	 * @return True if the value was added.
+	 */
+	public boolean putIfAbsent(int key, int value)
+	{
+		if (containsKey(key)) return false;
+		put(key, value);
+		return true;
+	}
+
+
+	/**
+	 * Removes the specified key.
+	 *
+	 * @return The removed value, or the missing value if there wasn't one.
+	 */
+	public int remove(int key)
+	{
+		if (key == FREE_KEY) {
+			if (!hasFreeKey) return missingValue;
+			hasFreeKey = false;
+			size--;
+			return freeKeyValue;
+		}
+
+		int slot = mix(key) & mask;
+		while (true) {
+			int k = keyAt(slot);
+			if (k == key) break;
+			if (k == FREE_KEY) return missingValue;
+			slot = (slot + 1) & mask;
+		}
+
+		int previous = valueAt(slot);
+		size--;
+
+		// Shift following entries back so probe chains stay unbroken
+		int gap = slot;
+		slot = (slot + 1) & mask;
+		int k;
+		while ((k = keyAt(slot)) != FREE_KEY) {
+			int home = mix(k) & mask;
+			if (((slot - home) & mask) >= ((slot - gap) & mask)) {
+				set(gap, k, valueAt(slot));
+				gap = slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+		set(gap, FREE_KEY, 0);
+
+		return previous;
+	}
+
+
+	/**
+	 * Returns the number of entries in the map.
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+
+	/**
+	 * Returns all keys in the map, in no particular order.
+	 */
+	public int[] keys()
+	{
+		int[] result = new int[size];
+		int count = 0;
+		if (hasFreeKey) result[count++] = FREE_KEY;
+		for (int[] page : pages) {
+			for (int n = 0; n < page.length; n += 2) {
+				if (page[n] != FREE_KEY) result[count++] = page[n];
+			}
+		}
+		return result;
+	}
+
+
+	/**
+	 * Removes all entries, keeping the current capacity.
+	 */
+	public void clear()
+	{
+		pages = null;
+		allocate(capacity);
+		hasFreeKey = false;
+		size = 0;
+	}
+
+
+	/**
+	 * Returns the number of bytes used by the table arrays.
+	 */
+	public long getTableBytes()
+	{
+		return (long)capacity * 8;
+	}
+
+
+	private int keyAt(int slot)
+	{
+		return pages[slot >>> PAGE_BITS][(slot & PAGE_MASK) << 1];
+	}
+
+
+	private int valueAt(int slot)
+	{
+		return pages[slot >>> PAGE_BITS][((slot & PAGE_MASK) << 1) + 1];
+	}
+
+
+	private void set(int slot, int key, int value)
+	{
+		int[] page = writablePage(slot);
+		int index = (slot & PAGE_MASK) << 1;
+		page[index] = key;
+		page[index + 1] = value;
+	}
+
+
+	/**
+	 * Returns the page holding the slot, first copying it if it's shared with
+	 * another map.
+	 */
+	private int[] writablePage(int slot)
+	{
+		int n = slot >>> PAGE_BITS;
+		if (shared.get(n)) {
+			pages[n] = pages[n].clone();
+			shared.clear(n);
+		}
+		return pages[n];
+	}
+
+
+	/**
+	 * Creates new pages for the specified number of slots and reinserts all
+	 * entries.
+	 */
+	private void allocate(int capacity)
+	{
+		int[][] oldPages = pages;
+
+		int pageSize = Math.min(capacity, 1 << PAGE_BITS);
+		pages = new int[capacity / pageSize][pageSize * 2];
+		for (int[] page : pages) Arrays.fill(page, FREE_KEY);
+		shared.clear();
+
+		this.capacity = capacity;
+		mask = capacity - 1;
+		resizeAt = (int)(capacity * LOAD_FACTOR);
+
+		if (oldPages == null) return;
+
+		for (int[] page : oldPages) {
+			for (int n = 0; n < page.length; n += 2) {
+				int key = page[n];
+				if (key == FREE_KEY) continue;
+
+				int slot = mix(key) & mask;
+				while (keyAt(slot) != FREE_KEY) slot = (slot + 1) & mask;
+				set(slot, key, page[n + 1]);
+			}
+		}
+	}
+
+
+	private static int tableSizeFor(int expectedSize)
+	{
+		long needed = (long)Math.ceil(Math.max(expectedSize, 1) / LOAD_FACTOR) + 1;
+		int capacity = 16;
+		while (capacity < needed && capacity < (1 << 30)) capacity <<= 1;
+		return capacity;
+	}
+
+
+	/**
+	 * Scrambles the key bits so sequential IDs spread across the table.
+	 */
+	private static int mix(int key)
+	{
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
@@ -0,0 +1,148 @@
+package net.fybertech.curselib.util;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 32-bit MurmurHash2, and the file fingerprints Curse computes with it.
+ *
+ * A fingerprint is the hash, with a seed of 1, of a file's bytes after
+ * removing every tab, line feed, carriage return and space.  It's the value
+ * given as CurseFile.PackageFingerprint.
+ */
+public class MurmurHash2
+{
+	private static final int M = 0x5bd1e995;
+	private static final int R = 24;
+
+	/** Seed used for Curse fingerprints */
+	public static final int FINGERPRINT_SEED = 1;
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+
+
+	/**
+	 * Hashes the first length bytes of the array.
+	 */
+	public static int hash(byte[] data, int length, int seed)
+	{
+		int h = seed ^ length;
+		int n = 0;
+
+		for (; n + 4 <= length; n += 4) {
+			int k = (data[n] & 0xFF) | (data[n + 1] & 0xFF) << 8 | (data[n + 2] & 0xFF) << 16 | (data[n + 3] & 0xFF) << 24;
+			h = mix(h, k);
+		}
+
+		return finish(h, data, n, length - n);
+	}
+
+
+	/**
+	 * Returns true for the bytes left out of fingerprints.
+	 */
+	public static boolean isWhitespace(int b)
+	{
+		return b == 9 || b == 10 || b == 13 || b == 32;
+	}
+
+
+	/**
+	 * Returns the fingerprint of an array, as an unsigned value.
+	 */
+	public static long fingerprint(byte[] data)
+	{
+		byte[] filtered = new byte[data.length];
+		int length = 0;
+		for (byte b : data) {
+			if (!isWhitespace(b)) filtered[length++] = b;
+		}
+
+		return hash(filtered, length, FINGERPRINT_SEED) & 0xFFFFFFFFL;
+	}
+
+
+	/**
+	 * Returns the fingerprint of a file, as an unsigned value.  The file is
+	 * read twice, first to count the bytes that are hashed, so it never has
+	 * to be held in memory.
+	 */
+	public static long fingerprint(File file) throws IOException
+	{
+		byte[] buffer = new byte[BUFFER_SIZE];
+
+		int length = 0;
+		InputStream in = new FileInputStream(file);
+		try {
+			int count;
+			while ((count = in.read(buffer)) != -1) {
+				for (int n = 0; n < count; n++) {
+					if (!isWhitespace(buffer[n])) length++;
+				}
+			}
+		}
+		finally {
+			in.close();
+		}
+
+		int h = FINGERPRINT_SEED ^ length;
+		byte[] tail = new byte[4];
+		int tailLength = 0;
+
+		in = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+		try {
+			int count;
+			while ((count = in.read(buffer)) != -1) {
+				for (int n = 0; n < count; n++) {
+					byte b = buffer[n];
+					if (isWhitespace(b)) continue;
+
+					tail[tailLength++] = b;
+					if (tailLength == 4) {
+						h = mix(h, (tail[0] & 0xFF) | (tail[1] & 0xFF) << 8 | (tail[2] & 0xFF) << 16 | (tail[3] & 0xFF) << 24);
+						tailLength = 0;
+					}
+				}
+			}
+		}
+		finally {
+			in.close();
+		}
+
+		return finish(h, tail, 0, tailLength) & 0xFFFFFFFFL;
+	}
+
+
+	private static int mix(int h, int k)
+	{
+		k *= M;
+		k ^= k >>> R;
+		k *= M;
+
+		h *= M;
+		return h ^ k;
+	}
+
+
+	/**
+	 * Mixes in the last one to three bytes and finalizes the hash.
+	 */
+	private static int finish(int h, byte[] data, int offset, int remaining)
+	{
+		if (remaining >= 3) h ^= (data[offset + 2] & 0xFF) << 16;
+		if (remaining >= 2) h ^= (data[offset + 1] & 0xFF) << 8;
+		if (remaining >= 1) {
+			h ^= data[offset] & 0xFF;
+			h *= M;
+		}
+
+		h ^= h >>> 13;
+		h *= M;
+		h ^= h >>> 15;
+		return h;
+	}
+}
@@ -0,0 +1,243 @@
+package net.fybertech.curselib.util;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * An inverted index of three-character substrings, used to narrow down
+ * which documents can contain a search string before checking them.
+ *
+ * Documents are identified by ints and are normally added in ascending
+ * order, though each may be given several strings.  Trigrams are hashed
+ * into int keys, so candidates are a superset of the real matches and
+ * should always be verified against the actual text.
+ *
+ * Documents can also be inserted out of order later on.  Trigrams are never
+ * removed, so text that was replaced only leaves extra candidates behind.
+ *
+ * Copies share their postings lists with the original until either side
+ * changes one, so an index can be updated into a new copy while the old one
+ * is still being read.
+ */
+public class TrigramIndex
+{
+	/** Trigram key to slot in the postings arrays */
+	private final IntIntMap slots;
+
+	/** Sorted document lists for each trigram */
+	private int[][] postings = new int[1024][];
+
+	/** Number of documents used in each postings list */
+	private int[] postingSizes = new int[1024];
+
+	private int slotCount = 0;
+
+	/** Highest document added so far */
+	private int lastDoc = -1;
+
+	/** Slots whose postings list is shared with another copy, and must be copied before changing */
+	private final BitSet shared = new BitSet();
+
+
+
+	/**
+	 * Creates an empty index.
+	 */
+	public TrigramIndex()
+	{
+		slots = new IntIntMap(4096, -1);
+	}
+
+
+	/**
+	 * Creates a copy of the specified index.  The original may keep being
+	 * read while the copy is changed, but neither should be changed by more
+	 * than one thread at a time.
+	 */
+	public TrigramIndex(TrigramIndex other)
+	{
+		slots = new IntIntMap(other.slots);
+		postings = other.postings.clone();
+		postingSizes = other.postingSizes.clone();
+		slotCount = other.slotCount;
+		lastDoc = other.lastDoc;
+
+		shared.set(0, slotCount);
+		other.shared.set(0, slotCount);
+	}
+
+
+	/**
+	 * Adds all trigrams of the text to the specified document.
+	 */
+	public void add(int doc, String text)
+	{
+		if (doc < lastDoc) throw new IllegalArgumentException("Documents must be added in ascending order");
+		lastDoc = doc;
+
+		if (text == null) return;
+
+		for (int n = 0; n + 3 <= text.length(); n++) {
+			int slot = getSlot(key(text, n));
+			int size = postingSizes[slot];
+			int[] list = postings[slot];
+
+			if (size > 0 && list[size - 1] == doc) continue;
+
+			if (shared.get(slot)) list = unshare(slot);
+
+			if (size == list.length) postings[slot] = list = Arrays.copyOf(list, Math.max(4, size * 2));
+			list[size] = doc;
+			postingSizes[slot] = size + 1;
+		}
+	}
+
+
+	/**
+	 * Adds all trigrams of the text to the specified document, which may
+	 * come before documents already added.
+	 */
+	public void insert(int doc, String text)
+	{
+		if (doc >= lastDoc) {
+			add(doc, text);
+			return;
+		}
+		if (text == null) return;
+
+		for (int n = 0; n + 3 <= text.length(); n++) {
+			int slot = getSlot(key(text, n));
+			int size = postingSizes[slot];
+			int[] list = postings[slot];
+
+			int pos = Arrays.binarySearch(list, 0, size, doc);
+			if (pos >= 0) continue;
+			pos = -pos - 1;
+
+			if (shared.get(slot)) list = unshare(slot);
+
+			if (size == list.length) postings[slot] = list = Arrays.copyOf(list, Math.max(4, size * 2));
+			System.arraycopy(list, pos, list, pos + 1, size - pos);
+			list[pos] = doc;
+			postingSizes[slot] = size + 1;
+		}
+	}
+
+
+	/**
+	 * Returns the sorted documents which may contain the specified string,
+	 * or null if the string is too short to be looked up and every document
+	 * needs to be checked.
+	 */
+	public int[] getCandidates(String query)
+	{
+		int count = query.length() - 2;
+		if (count < 1) return null;
+
+		int[][] lists = new int[count][];
+		int[] sizes = new int[count];
+		for (int n = 0; n < count; n++) {
+			int slot = slots.get(key(query, n));
+			if (slot < 0) return new int[0];
+			lists[n] = postings[slot];
+			sizes[n] = postingSizes[slot];
+		}
+
+		// Intersect starting from the shortest list
+		int shortest = 0;
+		for (int n = 1; n < count; n++) {
+			if (sizes[n] < sizes[shortest]) shortest = n;
+		}
+
+		int[] result = Arrays.copyOf(lists[shortest], sizes[shortest]);
+		int resultSize = result.length;
+
+		for (int n = 0; n < count && resultSize > 0; n++) {
+			if (n == shortest) continue;
+			resultSize = intersect(result, resultSize, lists[n], sizes[n]);
+		}
+
+		return Arrays.copyOf(result, resultSize);
+	}
+
+
+	/**
+	 * Trims unused space from the postings lists once all documents have
+	 * been added.
+	 */
+	public void compact()
+	{
+		for (int n = 0; n < slotCount; n++) {
+			if (postings[n].length != postingSizes[n]) postings[n] = Arrays.copyOf(postings[n], postingSizes[n]);
+		}
+		shared.clear();
+	}
+
+
+	/**
+	 * Returns the number of distinct trigram keys in the index.
+	 */
+	public int size()
+	{
+		return slotCount;
+	}
+
+
+	/**
+	 * Keeps only the entries of a that are also in b, returning the new size.
+	 */
+	private static int intersect(int[] a, int aSize, int[] b, int bSize)
+	{
+		int out = 0;
+		int j = 0;
+		for (int i = 0; i < aSize && j < bSize; i++) {
+			int doc = a[i];
+			while (j < bSize && b[j] < doc) j++;
+			if (j < bSize && b[j] == doc) a[out++] = doc;
+		}
+		return out;
+	}
+
+
+	/**
+	 * Gives the slot its own copy of a shared postings list, with room to
+	 * grow.
+	 */
+	private int[] unshare(int slot)
+	{
+		int size = postingSizes[slot];
+		int[] list = Arrays.copyOf(postings[slot], Math.max(4, size + size / 2 + 1));
+		postings[slot] = list;
+		shared.clear(slot);
+		return list;
+	}
+
+
+	private int getSlot(int key)
+	{
+		int slot = slots.get(key);
+		if (slot >= 0) return slot;
+
+		slot = slotCount++;
+		if (slot == postings.length) {
+			postings = Arrays.copyOf(postings, slot * 2);
+			postingSizes = Arrays.copyOf(postingSizes, slot * 2);
+		}
+		postings[slot] = new int[4];
+		slots.put(key, slot);
+
+		return slot;
+	}
+
+
+	private static int key(String text, int pos)
+	{
+		int c0 = text.charAt(pos);
+		int c1 = text.charAt(pos + 1);
+		int c2 = text.charAt(pos + 2);
+
+		// Exact for characters below U+0400, hashed above that
+		if ((c0 | c1 | c2) < 0x400) return (c0 << 20) | (c1 << 10) | c2;
+		return ((c0 * 31 + c1) * 31 + c2) | 0x40000000;
+	}
+}
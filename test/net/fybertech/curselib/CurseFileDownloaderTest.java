@@ -0,0 +1,268 @@
+package net.fybertech.curselib;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Tests CurseFileDownloader against a local HTTP server that answers Range
+ * requests.  Needs nothing beyond the JDK; run main, which throws on the
+ * first failure.
+ */
+public class CurseFileDownloaderTest
+{
+	private static final int FILE_SIZE = 3 * 1024 * 1024;
+	private static final long PARALLEL_THRESHOLD = 1024 * 1024;
+
+	private final byte[] content = new byte[FILE_SIZE];
+	private final AtomicInteger requests = new AtomicInteger();
+	private final AtomicInteger rangeRequests = new AtomicInteger();
+	private volatile boolean acceptRanges = true;
+
+	private HttpServer server;
+	private ExecutorService serverThreads;
+	private String baseUrl;
+	private File directory;
+
+
+
+	public static void main(String[] args) throws Exception
+	{
+		CurseFileDownloaderTest test = new CurseFileDownloaderTest();
+		test.setUp();
+		try {
+			test.testSerialDownload();
+			test.testParallelRanges();
+			test.testResumePartFile();
+			test.testServerWithoutRanges();
+			test.testMissingFile();
+			test.testConcurrentDownloadsShareConnections();
+		}
+		finally {
+			test.tearDown();
+		}
+		System.out.println("CurseFileDownloaderTest passed");
+	}
+
+
+	private void setUp() throws IOException
+	{
+		new Random(1).nextBytes(content);
+
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/files/", new RangeHandler());
+		serverThreads = Executors.newCachedThreadPool();
+		server.setExecutor(serverThreads);
+		server.start();
+		baseUrl = "http://127.0.0.1:" + server.getAddress().getPort() + "/files/";
+
+		directory = Files.createTempDirectory("curselib-test").toFile();
+	}
+
+
+	private void tearDown()
+	{
+		server.stop(0);
+		serverThreads.shutdownNow();
+		deleteAll(directory);
+	}
+
+
+
+	private void testSerialDownload() throws IOException
+	{
+		reset();
+		File file = downloader(new CurseDefaultHttpClient()).setParallelThreshold(Long.MAX_VALUE).download(baseUrl + "serial.jar", directory, false);
+
+		check(Arrays.equals(content, Files.readAllBytes(file.toPath())), "serial download content");
+		check(requests.get() == 1, "serial download makes one request");
+		check(!CurseFileDownloader.getPartFile(baseUrl + "serial.jar", directory).exists(), "part file renamed");
+	}
+
+
+	private void testParallelRanges() throws IOException
+	{
+		reset();
+		File file = downloader(new CurseDefaultHttpClient()).download(baseUrl + "ranges.jar", directory, false);
+
+		check(Arrays.equals(content, Files.readAllBytes(file.toPath())), "parallel download content");
+		check(rangeRequests.get() == CurseFileDownloader.DEFAULT_RANGES, "one request per range, got " + rangeRequests.get());
+	}
+
+
+	private void testResumePartFile() throws IOException
+	{
+		reset();
+		String url = baseUrl + "resume.jar";
+		File partFile = CurseFileDownloader.getPartFile(url, directory);
+		Files.write(partFile.toPath(), Arrays.copyOf(content, FILE_SIZE / 3));
+
+		File file = downloader(new CurseDefaultHttpClient()).setRanges(1).download(url, directory, false);
+
+		check(Arrays.equals(content, Files.readAllBytes(file.toPath())), "resumed download content");
+		check(rangeRequests.get() == 1, "resume requests the remainder only");
+	}
+
+
+	private void testServerWithoutRanges() throws IOException
+	{
+		reset();
+		acceptRanges = false;
+		try {
+			File file = downloader(new CurseDefaultHttpClient()).download(baseUrl + "noranges.jar", directory, false);
+
+			check(Arrays.equals(content, Files.readAllBytes(file.toPath())), "download without ranges content");
+			check(rangeRequests.get() == 0, "no range requests to a server without ranges");
+		}
+		finally {
+			acceptRanges = true;
+		}
+	}
+
+
+	private void testMissingFile() throws IOException
+	{
+		reset();
+		try {
+			downloader(new CurseDefaultHttpClient()).download(baseUrl + "missing.jar", directory, false);
+			check(false, "missing file throws");
+		}
+		catch (FileNotFoundException e) {
+			check(requests.get() == 1, "missing file isn't retried");
+		}
+	}
+
+
+	/**
+	 * More large downloads than the client has connections must all finish,
+	 * rather than each holding a connection while its ranges wait for one.
+	 */
+	private void testConcurrentDownloadsShareConnections() throws Exception
+	{
+		reset();
+		final CurseDefaultHttpClient client = new CurseDefaultHttpClient(2);
+		ExecutorService pool = Executors.newFixedThreadPool(6);
+		try {
+			List<Future<File>> results = new ArrayList<>();
+			for (int n = 0; n < 6; n++) {
+				final String url = baseUrl + "concurrent" + n + ".jar";
+				results.add(pool.submit(new Callable<File>() {
+					@Override
+					public File call() throws IOException {
+						return downloader(client).download(url, directory, false);
+					}
+				}));
+			}
+
+			for (Future<File> result : results) {
+				File file = result.get(60, TimeUnit.SECONDS);
+				check(Arrays.equals(content, Files.readAllBytes(file.toPath())), "concurrent download content");
+			}
+		}
+		finally {
+			pool.shutdownNow();
+		}
+	}
+
+
+
+	private CurseFileDownloader downloader(CurseHttpClient client)
+	{
+		return new CurseFileDownloader(client).setParallelThreshold(PARALLEL_THRESHOLD);
+	}
+
+
+	private void reset()
+	{
+		requests.set(0);
+		rangeRequests.set(0);
+	}
+
+
+	private static void check(boolean condition, String message)
+	{
+		if (!condition) throw new AssertionError(message);
+	}
+
+
+	private static void deleteAll(File file)
+	{
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) deleteAll(child);
+		}
+		file.delete();
+	}
+
+
+
+	/**
+	 * Serves the test content under any name except "missing.jar", honoring
+	 * single Range requests and If-Range.
+	 */
+	private class RangeHandler implements HttpHandler
+	{
+		private static final String ETAG = "\"test\"";
+
+		@Override
+		public void handle(HttpExchange exchange) throws IOException
+		{
+			requests.incrementAndGet();
+			try {
+				if (exchange.getRequestURI().getPath().endsWith("/missing.jar")) {
+					exchange.sendResponseHeaders(404, -1);
+					return;
+				}
+
+				String range = exchange.getRequestHeaders().getFirst("Range");
+				String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+				if (!acceptRanges || (ifRange != null && !ifRange.equals(ETAG))) range = null;
+
+				long start = 0, end = content.length - 1;
+				if (range != null) {
+					rangeRequests.incrementAndGet();
+					String[] bounds = range.substring("bytes=".length()).split("-", -1);
+					start = Long.parseLong(bounds[0]);
+					if (!bounds[1].isEmpty()) end = Math.min(end, Long.parseLong(bounds[1]));
+					exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + content.length);
+				}
+
+				exchange.getResponseHeaders().set("ETag", ETAG);
+				if (acceptRanges) exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+
+				long length = end - start + 1;
+				exchange.sendResponseHeaders(range != null ? 206 : 200, length);
+
+				// Written in chunks so concurrent downloads overlap
+				OutputStream out = exchange.getResponseBody();
+				for (long pos = start; pos <= end; pos += 64 * 1024) {
+					out.write(content, (int)pos, (int)Math.min(64 * 1024, end + 1 - pos));
+					Thread.sleep(1);
+				}
+			}
+			catch (IOException | InterruptedException e) {
+				// The client closed the connection early, as it does with probes
+			}
+			finally {
+				exchange.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,190 @@
+package net.fybertech.curselib;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+
+/**
+ * Tests that ParallelBZip2Decoder produces exactly what a serial
+ * BZip2CompressorInputStream decoding concatenated streams does, and fails
+ * where it fails.  Needs nothing beyond the JDK and the library's own
+ * dependencies; run main, which throws on the first failure.
+ */
+public class ParallelBZip2DecoderTest
+{
+	/** More threads than blocks in flight, even on a single processor */
+	private final ForkJoinPool pool = new ForkJoinPool(4);
+
+
+
+	public static void main(String[] args) throws Exception
+	{
+		ParallelBZip2DecoderTest test = new ParallelBZip2DecoderTest();
+		try {
+			test.testSingleBlock();
+			test.testMultipleBlocks();
+			test.testMultipleStreams();
+			test.testEmptyStream();
+			test.testDamagedBlock();
+			test.testTruncated();
+			test.testGarbageAfterStream();
+		}
+		finally {
+			test.pool.shutdown();
+		}
+		System.out.println("ParallelBZip2DecoderTest passed");
+	}
+
+
+
+	private void testSingleBlock() throws IOException
+	{
+		byte[] compressed = compress(text(20000, 1), 9);
+		checkSameAsSerial(compressed, "single block");
+	}
+
+
+	/**
+	 * With 100 KB blocks, a few megabytes of partly random text is split into
+	 * dozens of blocks, at bit offsets that aren't byte aligned.
+	 */
+	private void testMultipleBlocks() throws IOException
+	{
+		byte[] data = text(3 * 1024 * 1024, 2);
+		byte[] compressed = compress(data, 1);
+
+		byte[] decoded = checkSameAsSerial(compressed, "multiple blocks");
+		check(Arrays.equals(data, decoded), "multiple blocks decode to the original");
+	}
+
+
+	private void testMultipleStreams() throws IOException
+	{
+		ByteArrayOutputStream original = new ByteArrayOutputStream();
+		ByteArrayOutputStream concatenated = new ByteArrayOutputStream();
+		for (int n = 0; n < 3; n++) {
+			byte[] data = text(150000 + n * 50000, 10 + n);
+			original.write(data);
+			concatenated.write(compress(data, 1));
+		}
+
+		byte[] decoded = checkSameAsSerial(concatenated.toByteArray(), "multiple streams");
+		check(Arrays.equals(original.toByteArray(), decoded), "every stream is decoded");
+	}
+
+
+	private void testEmptyStream() throws IOException
+	{
+		byte[] decoded = checkSameAsSerial(compress(new byte[0], 9), "empty stream");
+		check(decoded.length == 0, "empty stream decodes to nothing");
+	}
+
+
+	private void testDamagedBlock() throws IOException
+	{
+		byte[] compressed = compress(text(500000, 3), 1);
+		compressed[compressed.length / 2] ^= 0x10;
+		checkBothFail(compressed, "damaged block");
+	}
+
+
+	private void testTruncated() throws IOException
+	{
+		byte[] compressed = compress(text(500000, 4), 1);
+		checkBothFail(Arrays.copyOf(compressed, compressed.length - 100), "truncated stream");
+	}
+
+
+	private void testGarbageAfterStream() throws IOException
+	{
+		byte[] compressed = compress(text(50000, 5), 9);
+		byte[] garbage = Arrays.copyOf(compressed, compressed.length + 16);
+		Arrays.fill(garbage, compressed.length, garbage.length, (byte)'x');
+		checkBothFail(garbage, "garbage after a stream");
+	}
+
+
+
+	/**
+	 * Decodes the data both ways, checks the results match, and returns them.
+	 */
+	private byte[] checkSameAsSerial(byte[] compressed, String name) throws IOException
+	{
+		byte[] serial = decodeSerial(compressed);
+
+		ByteArrayOutputStream parallel = new ByteArrayOutputStream();
+		long written = new ParallelBZip2Decoder(pool).decode(new ByteArrayInputStream(compressed), parallel);
+
+		check(Arrays.equals(serial, parallel.toByteArray()), name + ": output differs from the serial decoder");
+		check(written == serial.length, name + ": reported length " + written + ", expected " + serial.length);
+		return serial;
+	}
+
+
+	private void checkBothFail(byte[] compressed, String name)
+	{
+		try {
+			decodeSerial(compressed);
+			check(false, name + ": serial decoder should fail");
+		}
+		catch (IOException e) {}
+
+		try {
+			new ParallelBZip2Decoder(pool).decode(new ByteArrayInputStream(compressed), new ByteArrayOutputStream());
+			check(false, name + ": parallel decoder should fail");
+		}
+		catch (IOException e) {}
+	}
+
+
+	private static byte[] decodeSerial(byte[] compressed) throws IOException
+	{
+		InputStream in = new BZip2CompressorInputStream(new ByteArrayInputStream(compressed), true);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int count;
+		while ((count = in.read(buffer)) != -1) out.write(buffer, 0, count);
+		in.close();
+		return out.toByteArray();
+	}
+
+
+	private static byte[] compress(byte[] data, int blockSize) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		OutputStream out = new BZip2CompressorOutputStream(bytes, blockSize);
+		out.write(data);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+
+	/**
+	 * Returns JSON-like text mixed with random bytes, so it compresses but
+	 * not so well that every block holds the whole input.
+	 */
+	private static byte[] text(int length, long seed)
+	{
+		Random random = new Random(seed);
+		byte[] data = new byte[length];
+		byte[] word = "{\"Id\":12345,\"Name\":\"Example\",\"Summary\":\"A mod\"},".getBytes();
+		for (int n = 0; n < length; n++) {
+			data[n] = random.nextInt(4) == 0 ? (byte)random.nextInt(256) : word[n % word.length];
+		}
+		return data;
+	}
+
+
+	private static void check(boolean condition, String message)
+	{
+		if (!condition) throw new AssertionError(message);
+	}
+}
@@ -0,0 +1,370 @@
+package net.fybertech.curselib.database;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import net.fybertech.curselib.CurseLib;
+import net.fybertech.curselib.CurseLib.EnumDatabaseType;
+import net.fybertech.curselib.CurseValidatorStore;
+
+/**
+ * Tests CurseDatabaseUpdater against a local HTTP server serving bzip2
+ * compressed feeds and their versions.  Needs nothing beyond the JDK and
+ * the library's own dependencies; run main, which throws on the first
+ * failure.
+ */
+public class CurseDatabaseUpdaterTest
+{
+	/** Projects in each delta feed of testDeltasPublishedTogether, and the first ID of each */
+	private static final int DELTA_SIZE = 5000;
+	private static final int WEEKLY_ID = 100000;
+	private static final int DAILY_ID = 200000;
+	private static final int HOURLY_ID = 300000;
+
+	/** Version and compressed JSON currently served for each feed */
+	private final Map<EnumDatabaseType, Long> feedVersions = new ConcurrentHashMap<>();
+	private final Map<EnumDatabaseType, byte[]> feedData = new ConcurrentHashMap<>();
+
+	/** Number of times each feed was downloaded */
+	private final Map<EnumDatabaseType, AtomicInteger> downloads = new EnumMap<>(EnumDatabaseType.class);
+
+	private HttpServer server;
+	private ExecutorService serverThreads;
+	private String feedUrl;
+	private File directory;
+	private CurseValidatorStore previousStore;
+
+
+
+	public static void main(String[] args) throws Exception
+	{
+		CurseDatabaseUpdaterTest test = new CurseDatabaseUpdaterTest();
+		test.setUp();
+		try {
+			test.testFirstLoad();
+			test.testDeltasPublishedTogether();
+			test.testSingleDelta();
+			test.testCompleteRebuild();
+			test.testRestart();
+		}
+		finally {
+			test.tearDown();
+		}
+		System.out.println("CurseDatabaseUpdaterTest passed");
+	}
+
+
+	private void setUp() throws IOException
+	{
+		for (EnumDatabaseType type : EnumDatabaseType.values()) downloads.put(type, new AtomicInteger());
+
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/feed/", new FeedHandler());
+		serverThreads = Executors.newCachedThreadPool();
+		server.setExecutor(serverThreads);
+		server.start();
+		feedUrl = "http://127.0.0.1:" + server.getAddress().getPort() + "/feed/";
+
+		directory = Files.createTempDirectory("curselib-test").toFile();
+
+		// Keeps the version queries out of the real HTTP cache
+		previousStore = CurseLib.getValidatorStore();
+		CurseLib.setValidatorStore(new CurseValidatorStore(new File(directory, "http")));
+	}
+
+
+	private void tearDown()
+	{
+		CurseLib.setValidatorStore(previousStore);
+		server.stop(0);
+		serverThreads.shutdownNow();
+		deleteAll(directory);
+	}
+
+
+
+	private void testFirstLoad() throws Exception
+	{
+		serve(EnumDatabaseType.COMPLETE, 100, project(1, "Alpha"), project(2, "Beta"));
+		serve(EnumDatabaseType.WEEKLY, 110, project(2, "Beta weekly"));
+		serve(EnumDatabaseType.DAILY, 120, project(3, "Gamma"));
+		serve(EnumDatabaseType.HOURLY, 130, project(1, "Alpha hourly"));
+		reset();
+
+		CurseDatabaseUpdater updater = updater();
+		check(updater.update(), "first check loads the database");
+
+		CurseDatabase db = updater.getDatabase();
+		check(db.getDatabaseVersion() == 130, "timestamp of the newest feed, got " + db.getDatabaseVersion());
+		check(db.getAllProjects().size() == 3, "projects from every feed");
+		check(db.getProjectById(1).Name.equals("Alpha hourly"), "hourly replaces complete");
+		check(db.getProjectById(2).Name.equals("Beta weekly"), "weekly replaces complete");
+		check(db.getProjectById(3) != null, "daily adds a project");
+		check(db.getProjectsBySection("Mods").size() == 3, "database is processed");
+		for (EnumDatabaseType type : EnumDatabaseType.values()) check(downloads.get(type).get() == 1, type + " downloaded once");
+
+		check(!updater.update(), "nothing changes without new versions");
+		for (EnumDatabaseType type : EnumDatabaseType.values()) check(downloads.get(type).get() == 1, type + " not downloaded again");
+	}
+
+
+	/**
+	 * Several deltas changing in one check must become visible together,
+	 * never some of them without the rest.  The deltas are large enough that
+	 * merging each one takes a while, so a reader would see any generation
+	 * published in between.
+	 */
+	private void testDeltasPublishedTogether() throws Exception
+	{
+		final CurseDatabaseUpdater updater = updater();
+		updater.update();
+		final CurseDatabase db = updater.getDatabase();
+
+		serve(EnumDatabaseType.WEEKLY, 210, projects(WEEKLY_ID, DELTA_SIZE, "Weekly"));
+		serve(EnumDatabaseType.DAILY, 220, projects(DAILY_ID, DELTA_SIZE, "Daily"));
+		serve(EnumDatabaseType.HOURLY, 230, projects(HOURLY_ID, DELTA_SIZE, "Hourly"));
+		reset();
+
+		final AtomicReference<String> failure = new AtomicReference<>();
+		final AtomicInteger generations = new AtomicInteger();
+		final boolean[] done = new boolean[1];
+		Thread reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				CurseDatabaseGeneration last = null;
+				while (!isDone()) {
+					CurseDatabaseGeneration generation = db.getGeneration();
+					if (generation != last) {
+						generations.incrementAndGet();
+						last = generation;
+					}
+
+					boolean weekly = generation.getProjectById(WEEKLY_ID) != null;
+					boolean daily = generation.getProjectById(DAILY_ID) != null;
+					boolean hourly = generation.getProjectById(HOURLY_ID) != null;
+					if (weekly != daily || daily != hourly) failure.set("saw weekly=" + weekly + " daily=" + daily + " hourly=" + hourly);
+				}
+			}
+
+			private boolean isDone() {
+				synchronized (done) {
+					return done[0];
+				}
+			}
+		});
+
+		final Set<EnumDatabaseType> notified = EnumSet.noneOf(EnumDatabaseType.class);
+		updater.addListener(new CurseDatabaseUpdater.UpdateListener() {
+			@Override
+			public void databaseUpdated(CurseDatabase database, Set<EnumDatabaseType> updatedTypes) {
+				notified.addAll(updatedTypes);
+			}
+		});
+
+		CurseDatabaseGeneration before = db.getGeneration();
+		reader.start();
+		try {
+			check(updater.update(), "check applies the deltas");
+		}
+		finally {
+			synchronized (done) {
+				done[0] = true;
+			}
+			reader.join();
+		}
+
+		check(failure.get() == null, failure.get());
+		check(generations.get() <= 2, "one generation published for all deltas, reader saw " + generations.get());
+		check(before.getProjectById(WEEKLY_ID) == null, "previous generation unchanged");
+		check(updater.getDatabase() == db, "same database object");
+		check(db.getDatabaseVersion() == 230, "timestamp of the newest delta");
+		check(db.getProjectsBySection("Mods").size() == 3 + 3 * DELTA_SIZE, "new projects are processed");
+		check(notified.equals(EnumSet.of(EnumDatabaseType.WEEKLY, EnumDatabaseType.DAILY, EnumDatabaseType.HOURLY)), "listener told which feeds changed");
+		check(downloads.get(EnumDatabaseType.COMPLETE).get() == 0, "COMPLETE not downloaded");
+	}
+
+
+	private void testSingleDelta() throws Exception
+	{
+		CurseDatabaseUpdater updater = updater();
+		updater.update();
+		CurseDatabase db = updater.getDatabase();
+
+		serve(EnumDatabaseType.HOURLY, 330, project(1, "Alpha again"), project(13, "Delta"));
+		reset();
+
+		check(updater.update(), "check applies the hourly feed");
+		check(updater.getDatabase() == db, "same database object");
+		check(db.getProjectById(1).Name.equals("Alpha again"), "hourly replaces a project");
+		check(db.getProjectById(13) != null, "hourly adds a project");
+		check(db.getProjectsByVersion("1.12.2").size() == db.getAllProjects().size(), "changed projects are processed");
+		check(downloads.get(EnumDatabaseType.HOURLY).get() == 1, "hourly downloaded");
+		check(downloads.get(EnumDatabaseType.WEEKLY).get() == 0 && downloads.get(EnumDatabaseType.DAILY).get() == 0, "unchanged deltas not downloaded");
+	}
+
+
+	private void testCompleteRebuild() throws Exception
+	{
+		CurseDatabaseUpdater updater = updater();
+		updater.update();
+		CurseDatabase db = updater.getDatabase();
+		CurseFileCache cache = new CurseFileCache(new File(directory, "files"));
+		db.setFileCache(cache);
+
+		serve(EnumDatabaseType.COMPLETE, 400, project(1, "Alpha complete"), project(20, "Epsilon"));
+		reset();
+
+		check(updater.update(), "check rebuilds from the new COMPLETE");
+		check(updater.getDatabase() == db, "same database object");
+		check(db.getFileCache() == cache, "file cache kept");
+		check(db.getDatabaseVersion() == 400, "timestamp of the new COMPLETE");
+		check(db.getProjectById(1).Name.equals("Alpha complete"), "older deltas don't replace the new COMPLETE");
+		check(db.getProjectById(2) == null, "projects gone from COMPLETE are dropped");
+		check(db.getAllProjects().size() == 2, "only the new COMPLETE's projects");
+		check(downloads.get(EnumDatabaseType.COMPLETE).get() == 1, "COMPLETE downloaded");
+	}
+
+
+	private void testRestart() throws Exception
+	{
+		reset();
+
+		CurseDatabaseUpdater updater = updater();
+		check(updater.update(), "first check after a restart loads the database");
+		check(updater.getDatabase().getProjectById(20) != null, "database loaded from disk");
+		for (EnumDatabaseType type : EnumDatabaseType.values()) check(downloads.get(type).get() == 0, type + " not downloaded after a restart");
+	}
+
+
+
+	private CurseDatabaseUpdater updater()
+	{
+		return new CurseDatabaseUpdater(feedUrl, directory);
+	}
+
+
+	/**
+	 * Serves a feed holding the specified projects, with its version as the
+	 * timestamp.
+	 */
+	private void serve(EnumDatabaseType type, long version, String... projects) throws IOException
+	{
+		StringBuilder json = new StringBuilder("{\"timestamp\":" + version + ",\"data\":[");
+		for (int n = 0; n < projects.length; n++) {
+			if (n > 0) json.append(',');
+			json.append(projects[n]);
+		}
+		json.append("]}");
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		OutputStream out = new BZip2CompressorOutputStream(bytes);
+		out.write(json.toString().getBytes(StandardCharsets.UTF_8));
+		out.close();
+
+		feedData.put(type, bytes.toByteArray());
+		feedVersions.put(type, version);
+	}
+
+
+	/**
+	 * Returns the JSON of consecutively numbered projects.
+	 */
+	private static String[] projects(int firstId, int count, String name)
+	{
+		String[] projects = new String[count];
+		for (int n = 0; n < count; n++) projects[n] = project(firstId + n, name + " " + n);
+		return projects;
+	}
+
+
+	private static String project(int id, String name)
+	{
+		return "{\"Id\":" + id + ",\"Name\":\"" + name + "\",\"PrimaryAuthorName\":\"author\",\"Authors\":[{\"Name\":\"author\"}],"
+				+ "\"CategorySection\":{\"ID\":6,\"GameID\":432,\"Name\":\"Mods\",\"PackageType\":6,\"Path\":\"mods\"},"
+				+ "\"Categories\":[{\"Id\":1,\"Name\":\"Tools\"}],"
+				+ "\"LatestFiles\":[{\"Id\":" + (id * 100) + ",\"FileName\":\"file.jar\",\"GameVersion\":[\"1.12.2\"]}],"
+				+ "\"GameVersionLatestFiles\":[{\"GameVesion\":\"1.12.2\",\"ProjectFileID\":" + (id * 100) + ",\"ProjectFileName\":\"file.jar\"}]}";
+	}
+
+
+	private void reset()
+	{
+		for (AtomicInteger count : downloads.values()) count.set(0);
+	}
+
+
+	private static void check(boolean condition, String message)
+	{
+		if (!condition) throw new AssertionError(message);
+	}
+
+
+	private static void deleteAll(File file)
+	{
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) deleteAll(child);
+		}
+		file.delete();
+	}
+
+
+
+	/**
+	 * Answers version queries with the served version and feed downloads
+	 * with the compressed feed, or 404 for feeds not being served.
+	 */
+	private class FeedHandler implements HttpHandler
+	{
+		@Override
+		public void handle(HttpExchange exchange) throws IOException
+		{
+			try {
+				String name = exchange.getRequestURI().getPath().substring("/feed/".length());
+
+				for (EnumDatabaseType type : EnumDatabaseType.values()) {
+					byte[] body = null;
+					if (name.equals(type.getUrlSlug() + ".json.bz2.txt")) {
+						Long version = feedVersions.get(type);
+						if (version != null) body = version.toString().getBytes(StandardCharsets.US_ASCII);
+					}
+					else if (name.equals(type.getUrlSlug() + ".json.bz2")) {
+						body = feedData.get(type);
+						if (body != null) downloads.get(type).incrementAndGet();
+					}
+					else continue;
+
+					if (body == null) break;
+					exchange.sendResponseHeaders(200, body.length);
+					exchange.getResponseBody().write(body);
+					return;
+				}
+
+				exchange.sendResponseHeaders(404, -1);
+			}
+			finally {
+				exchange.close();
+			}
+		}
+	}
+}